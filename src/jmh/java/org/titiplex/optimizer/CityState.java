@@ -0,0 +1,52 @@
+package org.titiplex.optimizer;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.titiplex.city.Building;
+import org.titiplex.city.City;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/**
+ * Seeded city from {@link City#randomInitialCity}, one per map size.
+ */
+@State(Scope.Thread)
+public class CityState {
+
+    @Param({"24", "64", "128", "256"})
+    public int size;
+
+    @Param("777")
+    public long seed;
+
+    City city;
+    SplittableRandom rnd;
+    // empty cells, cycled through by the placement benchmark
+    City.Coordinates[] emptyCells;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        city = City.randomInitialCity(size, size, new Random(seed));
+        rnd = new SplittableRandom(seed);
+        List<City.Coordinates> empty = new ArrayList<>();
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (city.typeAt(x, y) == Building.Type.VOID) empty.add(new City.Coordinates(x, y));
+            }
+        }
+        emptyCells = empty.toArray(new City.Coordinates[0]);
+    }
+
+    City.Coordinates nextEmptyCell() {
+        City.Coordinates c = emptyCells[next];
+        next = (next + 1) % emptyCells.length;
+        return c;
+    }
+}
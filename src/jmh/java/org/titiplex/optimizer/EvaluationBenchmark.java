@@ -0,0 +1,39 @@
+package org.titiplex.optimizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.titiplex.city.City;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full evaluation of a city: score, penalty and road connectivity.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluationBenchmark {
+
+    @Benchmark
+    public double score(CityState state) {
+        return GameOptimizer.score(state.city);
+    }
+
+    @Benchmark
+    public double penalty(CityState state) {
+        return GameOptimizer.penalty(state.city);
+    }
+
+    @Benchmark
+    public Set<City.Coordinates> connectedRoads(CityState state) {
+        return GameOptimizer.connectedRoads(state.city);
+    }
+}
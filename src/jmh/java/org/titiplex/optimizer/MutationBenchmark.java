@@ -0,0 +1,59 @@
+package org.titiplex.optimizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.titiplex.city.Building;
+import org.titiplex.city.City;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copy and mutation paths. Benchmarks that mutate the shared city run under a journal and roll back,
+ * so every invocation sees the same seeded city.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MutationBenchmark {
+
+    @Benchmark
+    public City deepCopy(CityState state) {
+        return state.city.deepCopy();
+    }
+
+    @Benchmark
+    public City snapshot(CityState state) {
+        return state.city.snapshot();
+    }
+
+    @Benchmark
+    public boolean setBuilding(CityState state) {
+        City city = state.city;
+        city.beginChanges();
+        boolean placed = city.setBuilding(state.nextEmptyCell(), new Building(Building.Characteristics.SMALL_FOUNTAIN_PARK));
+        city.rollbackChanges();
+        return placed;
+    }
+
+    @Benchmark
+    public City randomMutation(CityState state) {
+        return GameOptimizer.randomMutation(state.city, state.rnd);
+    }
+
+    @Benchmark
+    public int removeUselessServices(CityState state) {
+        City city = state.city;
+        city.beginChanges();
+        CoverageOptimizer.removeUselessServices(city);
+        int changed = city.changeCount();
+        city.rollbackChanges();
+        return changed;
+    }
+}
@@ -1,10 +1,29 @@
 package org.titiplex;
 
 import org.titiplex.city.City;
+import org.titiplex.optimizer.BatchOptimizer;
+import org.titiplex.optimizer.BatchScorer;
 import org.titiplex.optimizer.GameOptimizer;
+import org.titiplex.optimizer.Optimizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
 
 public class Main {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
+        if (args.length > 1 && args[0].equals("score")) {
+            rank(Path.of(args[1]));
+            return;
+        }
+        if (args.length > 0) {
+            runBatch(Path.of(args[0]));
+            return;
+        }
         int width = 24;
         int height = 24;
         int iterations = 10_000;
@@ -15,4 +34,47 @@ public class Main {
         System.out.println("Best city :");
         best.printCity();
     }
+
+    /**
+     * Scores every city of a {@link org.titiplex.city.CityFile} and prints them best first, by record index.
+     */
+    private static void rank(Path cities) throws IOException {
+        double[] scores;
+        try (BatchScorer scorer = new BatchScorer()) {
+            scores = scorer.score(cities);
+        }
+        IntStream.range(0, scores.length).boxed()
+                .sorted(Comparator.comparingDouble((Integer k) -> scores[k]).reversed())
+                .forEach(k -> System.out.println("#" + k + " -> " + scores[k]));
+    }
+
+    /**
+     * Optimizes every job of a file, one per line: {@code width height iterations seed [replicas]}.
+     * Blank lines and lines starting with '#' are skipped. Results are printed as jobs finish.
+     */
+    private static void runBatch(Path jobsFile) throws IOException {
+        List<Optimizer.Config> jobs = new ArrayList<>();
+        for (String line : Files.readAllLines(jobsFile)) {
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            String[] f = line.split("\\s+");
+            if (f.length < 4) throw new IllegalArgumentException("Invalid job line: " + line);
+            var config = Optimizer.Config.of(Integer.parseInt(f[0]), Integer.parseInt(f[1]),
+                    Integer.parseInt(f[2]), Long.parseLong(f[3]));
+            jobs.add(f.length > 4 ? config.withReplicas(Integer.parseInt(f[4])) : config);
+        }
+
+        System.out.println("Running " + jobs.size() + " jobs...");
+        try (BatchOptimizer batch = new BatchOptimizer()) {
+            batch.run(jobs).forEach(done -> {
+                var c = done.config();
+                String job = "#" + done.index() + " " + c.width() + "x" + c.height() + " seed " + c.seed();
+                if (done.ok()) {
+                    System.out.println(job + " -> " + done.result().score());
+                } else {
+                    System.out.println(job + " failed: " + done.error());
+                }
+            });
+        }
+    }
 }
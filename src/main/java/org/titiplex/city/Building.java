@@ -1,16 +1,135 @@
 package org.titiplex.city;
 
-import java.util.HashSet;
-import java.util.Objects;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
-public record Building(Characteristics chars, HashSet<City.Coordinates> coords) {
+/**
+ * A building and its footprint: the rectangle of cells it occupies once placed, empty before.
+ * <p>
+ * Buildings compare by identity, so they are cheap keys; {@link #sameChars} and {@link #sameFootprint}
+ * compare their contents.
+ */
+public final class Building {
+
+    /**
+     * Shared building of every empty cell. It never occupies a cell, so its footprint stays empty.
+     */
+    public static final Building VOID = new Building(Characteristics.VOID);
+
+    private final Characteristics chars;
+    // footprint [x0, x0 + w) x [y0, y0 + h), w = h = 0 until placed
+    private int x0, y0, w, h;
 
     public Building(Characteristics chars) {
-        this(chars, new HashSet<>());
+        this.chars = chars;
+    }
+
+    /**
+     * A building already placed on a footprint, e.g. to put back a copy with {@link City#restoreBuilding}.
+     */
+    public Building(Characteristics chars, City.Area footprint) {
+        this(chars);
+        place(footprint.x0(), footprint.y0(), footprint.x1() - footprint.x0(), footprint.y1() - footprint.y0());
+    }
+
+    public Characteristics chars() {
+        return chars;
+    }
+
+    void place(int x0, int y0, int w, int h) {
+        this.x0 = x0;
+        this.y0 = y0;
+        this.w = w;
+        this.h = h;
+    }
+
+    /**
+     * The occupied rectangle, null when the building was never placed.
+     */
+    public City.Area footprint() {
+        return w == 0 ? null : new City.Area(x0, y0, x0 + w, y0 + h);
+    }
+
+    public boolean isPlaced() {
+        return w > 0;
+    }
+
+    /**
+     * Bounds of the footprint, x1 and y1 excluded, for loops that should not allocate.
+     */
+    public int x0() {
+        return x0;
+    }
+
+    public int y0() {
+        return y0;
+    }
+
+    public int x1() {
+        return x0 + w;
+    }
+
+    public int y1() {
+        return y0 + h;
+    }
+
+    public int cellCount() {
+        return w * h;
     }
 
-    public void addCoord(City.Coordinates coord) {
-        coords.add(coord);
+    public boolean covers(int x, int y) {
+        return x >= x0 && x < x0 + w && y >= y0 && y < y0 + h;
+    }
+
+    /**
+     * Copy of the building, on the same footprint.
+     */
+    public Building copy() {
+        Building b = new Building(chars);
+        b.place(x0, y0, w, h);
+        return b;
+    }
+
+    /**
+     * Read-only view of the footprint cells, in row-major order.
+     */
+    public Set<City.Coordinates> coords() {
+        return new Footprint();
+    }
+
+    private final class Footprint extends AbstractSet<City.Coordinates> {
+        @Override
+        public int size() {
+            return cellCount();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return o instanceof City.Coordinates(int x, int y) && covers(x, y);
+        }
+
+        @Override
+        public Iterator<City.Coordinates> iterator() {
+            return new Iterator<>() {
+                int k;
+
+                @Override
+                public boolean hasNext() {
+                    return k < w * h;
+                }
+
+                @Override
+                public City.Coordinates next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    var c = new City.Coordinates(x0 + k % w, y0 + k / w);
+                    k++;
+                    return c;
+                }
+            };
+        }
     }
 
     public enum Kind {
@@ -39,6 +158,13 @@ public record Building(Characteristics chars, HashSet<City.Coordinates> coords)
         FACTORY(Kind.FACTORY),
         PARK(Kind.PARK);
 
+        /**
+         * Types of the service buildings, whose usefulness is the number of residences in their reach. The
+         * order is that of the walks over services, which runs follow.
+         */
+        public static final List<Type> SERVICES = List.of(POLICE_STATION, FIRE_STATION, HEALTH_CLINIC, SCHOOL,
+                PARK, RAILWAY_STATION);
+
         private final Kind kind;
 
         Type(Kind kind) {
@@ -135,18 +261,16 @@ public record Building(Characteristics chars, HashSet<City.Coordinates> coords)
         };
     }
 
-    @Override
-    public boolean equals(Object o) {
-        if (!(o instanceof Building(Characteristics chars1, HashSet<City.Coordinates> coords1))) return false;
-        return chars() == chars1 && Objects.equals(coords(), coords1);
+    public static boolean sameChars(Building a, Building b) {
+        return a.chars().equals(b.chars());
     }
 
-    @Override
-    public int hashCode() {
-        return Objects.hash(chars(), coords());
+    public static boolean sameFootprint(Building a, Building b) {
+        return a.chars == b.chars && a.x0 == b.x0 && a.y0 == b.y0 && a.w == b.w && a.h == b.h;
     }
 
-    public static boolean sameChars(Building a, Building b) {
-        return a.chars().equals(b.chars());
+    @Override
+    public String toString() {
+        return "Building[" + chars + " " + footprint() + "]";
     }
 }
\ No newline at end of file
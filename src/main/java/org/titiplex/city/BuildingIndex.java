@@ -0,0 +1,94 @@
+package org.titiplex.city;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Live buildings of a {@link City} grouped by type, with the running count of each type and the running
+ * total cost, so that none of them needs a pass over the grid or the building table.
+ * <p>
+ * Each type keeps the ids of its buildings in a dense list; a removal moves the last id of the list into
+ * the freed slot, so both updates are O(1).
+ */
+final class BuildingIndex {
+
+    private static final int TYPES = Building.Type.values().length;
+
+    // ids of the buildings of each type, by Type ordinal; count[t] entries of ids[t] are used
+    private final IntPages[] ids = new IntPages[TYPES];
+    private final int[] count = new int[TYPES];
+    // position of each id in the list of its type
+    private final IntPages position;
+    // costs are whole numbers, so the running sum stays exact
+    private double totalCost;
+
+    BuildingIndex() {
+        for (int t = 0; t < TYPES; t++) ids[t] = new IntPages(0);
+        this.position = new IntPages(0);
+    }
+
+    /**
+     * A copy sharing the lists of the other index, see {@link IntPages#share()}.
+     */
+    BuildingIndex(BuildingIndex other) {
+        for (int t = 0; t < TYPES; t++) ids[t] = other.ids[t].share();
+        System.arraycopy(other.count, 0, count, 0, TYPES);
+        this.position = other.position.share();
+        this.totalCost = other.totalCost;
+    }
+
+    /**
+     * Reads an index written by {@link #write}.
+     */
+    BuildingIndex(DataInput in) throws IOException {
+        for (int t = 0; t < TYPES; t++) {
+            ids[t] = new IntPages(in);
+            count[t] = in.readInt();
+        }
+        this.position = new IntPages(in);
+        this.totalCost = in.readDouble();
+    }
+
+    /**
+     * Writes the lists in their current order, which later picks by position depend on.
+     */
+    void write(DataOutput out) throws IOException {
+        for (int t = 0; t < TYPES; t++) {
+            ids[t].write(out);
+            out.writeInt(count[t]);
+        }
+        position.write(out);
+        out.writeDouble(totalCost);
+    }
+
+    void placed(int id, Building b) {
+        int t = b.chars().type.ordinal();
+        ids[t].grow(count[t] + 1);
+        position.grow(id + 1);
+        ids[t].set(count[t], id);
+        position.set(id, count[t]++);
+        totalCost += b.getCost();
+    }
+
+    void removed(int id, Building b) {
+        int t = b.chars().type.ordinal();
+        int last = ids[t].get(--count[t]);
+        int p = position.get(id);
+        ids[t].set(p, last);
+        position.set(last, p);
+        totalCost -= b.getCost();
+    }
+
+    int count(Building.Type type) {
+        return count[type.ordinal()];
+    }
+
+    int id(Building.Type type, int k) {
+        return ids[type.ordinal()].get(k);
+    }
+
+    double totalCost() {
+        return totalCost;
+    }
+}
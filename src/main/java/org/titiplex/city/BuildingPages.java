@@ -0,0 +1,105 @@
+package org.titiplex.city;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The building table of a {@link City}, paged and shared copy-on-write between snapshots like
+ * {@link IntPages}. Placed buildings never change, so snapshots share the buildings themselves too.
+ */
+final class BuildingPages {
+
+    private static final int SHIFT = IntPages.SHIFT, PAGE = IntPages.PAGE, MASK = IntPages.MASK;
+    private static final Building.Characteristics[] CHARACTERISTICS = Building.Characteristics.values();
+
+    private Building[][] pages;
+    private boolean[] shared;
+
+    BuildingPages() {
+        this.pages = new Building[][]{new Building[PAGE]};
+        this.shared = new boolean[1];
+    }
+
+    /**
+     * Reads the ids [0, bound) written by {@link #write}, into new buildings.
+     */
+    BuildingPages(DataInput in, int bound) throws IOException {
+        this();
+        set(0, Building.VOID);
+        for (int id = 1; id < bound; id++) {
+            int c = in.readInt();
+            if (c < 0) {
+                set(id, null);
+                continue;
+            }
+            Building b = new Building(CHARACTERISTICS[c]);
+            b.place(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+            set(id, b);
+        }
+    }
+
+    private BuildingPages(BuildingPages other) {
+        this.pages = other.pages.clone();
+        this.shared = new boolean[pages.length];
+        Arrays.fill(shared, true);
+    }
+
+    /**
+     * A copy of the table holding copies of the buildings, which then belong to the copy only.
+     */
+    BuildingPages copyBuildings() {
+        BuildingPages copy = new BuildingPages(this);
+        for (int p = 0; p < pages.length; p++) {
+            Building[] page = pages[p].clone();
+            for (int i = 0; i < page.length; i++) {
+                if (page[i] != null && page[i] != Building.VOID) page[i] = page[i].copy();
+            }
+            copy.pages[p] = page;
+            copy.shared[p] = false;
+        }
+        return copy;
+    }
+
+    BuildingPages share() {
+        Arrays.fill(shared, true);
+        return new BuildingPages(this);
+    }
+
+    /**
+     * Writes the buildings of the ids [1, bound), -1 for a free id, otherwise the characteristics and the
+     * footprint.
+     */
+    void write(DataOutput out, int bound) throws IOException {
+        for (int id = 1; id < bound; id++) {
+            Building b = get(id);
+            if (b == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            out.writeInt(b.chars().ordinal());
+            out.writeInt(b.x0());
+            out.writeInt(b.y0());
+            out.writeInt(b.x1() - b.x0());
+            out.writeInt(b.y1() - b.y0());
+        }
+    }
+
+    Building get(int id) {
+        return pages[id >>> SHIFT][id & MASK];
+    }
+
+    void set(int id, Building b) {
+        int p = id >>> SHIFT;
+        if (p == pages.length) {
+            pages = Arrays.copyOf(pages, p + 1);
+            shared = Arrays.copyOf(shared, p + 1);
+            pages[p] = new Building[PAGE];
+        } else if (shared[p]) {
+            pages[p] = pages[p].clone();
+            shared[p] = false;
+        }
+        pages[p][id & MASK] = b;
+    }
+}
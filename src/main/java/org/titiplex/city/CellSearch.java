@@ -0,0 +1,65 @@
+package org.titiplex.city;
+
+import java.util.Arrays;
+
+/**
+ * Scratch space for breadth-first searches over the cells of a grid: a queue of cell indexes, the
+ * cell each one was reached from, and a visited set cleared in O(1) by moving to a new epoch.
+ * <p>
+ * Meant to be reused from one search to the next, so that a search allocates nothing.
+ */
+public final class CellSearch {
+
+    private final int[] queue, parent, stamp;
+    private int epoch, head, tail;
+
+    public CellSearch(int cells) {
+        this.queue = new int[cells];
+        this.parent = new int[cells];
+        this.stamp = new int[cells];
+    }
+
+    /**
+     * Empties the queue and forgets every visited cell.
+     */
+    public void reset() {
+        head = 0;
+        tail = 0;
+        if (++epoch == Integer.MAX_VALUE) {
+            Arrays.fill(stamp, 0);
+            epoch = 1;
+        }
+    }
+
+    /**
+     * Queues a cell reached from another one (-1 for a start cell), unless it was already visited.
+     *
+     * @return whether the cell was queued
+     */
+    public boolean visit(int cell, int from) {
+        if (stamp[cell] == epoch) return false;
+        stamp[cell] = epoch;
+        parent[cell] = from;
+        queue[tail++] = cell;
+        return true;
+    }
+
+    public boolean visited(int cell) {
+        return stamp[cell] == epoch;
+    }
+
+    public boolean isEmpty() {
+        return head == tail;
+    }
+
+    public int poll() {
+        return queue[head++];
+    }
+
+    /**
+     * The cell a visited cell was reached from, -1 for a start cell.
+     */
+    public int parent(int cell) {
+        return parent[cell];
+    }
+}
@@ -1,6 +1,10 @@
 package org.titiplex.city;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.*;
+import java.util.random.RandomGenerator;
 
 public final class City {
 
@@ -17,53 +21,364 @@ public final class City {
         }
     }
 
+    /**
+     * Rectangle of cells [x0, x1) x [y0, y1).
+     */
+    public record Area(int x0, int y0, int x1, int y1) {
+
+        public Area {
+            if (x0 > x1 || y0 > y1) throw new IllegalArgumentException("Invalid area");
+        }
+
+        public boolean contains(int x, int y) {
+            return x >= x0 && x < x1 && y >= y0 && y < y1;
+        }
+
+        public int size() {
+            return (x1 - x0) * (y1 - y0);
+        }
+
+        /**
+         * The k-th cell of the area, in row-major order like {@link City#allCoords()}.
+         */
+        public Coordinates coordinates(int k) {
+            int w = x1 - x0;
+            return new Coordinates(x0 + k % w, y0 + k / w);
+        }
+    }
+
     public static int manhattan(Coordinates a, Coordinates b) {
         return Math.abs(a.x - b.x) + Math.abs(a.y - b.y);
     }
 
-    public HashMap<Coordinates, Building> coords_to_building;
+    /**
+     * Read-only view of the grid keyed by coordinates, kept for existing callers.
+     * Hot paths should use the index-based accessors instead.
+     */
+    public final Map<Coordinates, Building> coords_to_building = new CellView();
     public int width, height;
 
     public Coordinates start;
-    public Coordinates[][] grid;
+
+    // building id per cell, row-major (y * width + x), 0 for an empty cell
+    private IntPages cells;
+    // Type ordinal of the building of each cell, so that typeAt reads a single page
+    private IntPages types;
+    // building table indexed by id, slot 0 is always the shared VOID building
+    private BuildingPages buildings;
+    // recycled ids, so the table stays as small as the number of live buildings
+    private IntPages freeIds;
+    private int freeCount;
+    private int nextId;
+    // indexes derived from the buildings, updated by indexPlaced/indexRemoved
+    private CoverageLayers coverage;
+    private DistanceLayers distances;
+    private BuildingIndex byType;
+    private ResidentialCounts residents;
+    private ServiceHeap services;
+    private ServiceBoxes serviceBoxes;
+    // ids found by serviceBoxes.inReach, scratch of residentialChanged
+    private int[] reachHits = new int[0];
+    private RoadNetwork roads;
+    private RailNetwork rails;
+    // cells where buildings may be placed or removed, the whole grid unless restricted
+    private Area editable;
+    // undo journal, filled between beginChanges() and commit/rollback:
+    // every cell write with the id and building it replaced, and every building placed or removed
+    private boolean recording;
+    private int[] journalCells = new int[0];
+    private int[] journalIds = new int[0];
+    private Building[] journalBuildings = new Building[0];
+    private int journalSize;
+    private int[] tableOps = new int[0];
+    private Building[] tableBuildings = new Building[0];
+    private int tableOpCount;
+
+    private static final int OP_REUSE = 0, OP_GROW = 1, OP_FREE = 2;
+    private static final Building.Type[] TYPES = Building.Type.values();
 
     public City(int width, int height) {
         if (width <= 0 || height <= 0) throw new IllegalArgumentException("Invalid dimensions");
         this.width = width;
         this.height = height;
-        this.grid = new Coordinates[height][width];
-        this.coords_to_building = new HashMap<>();
+        this.cells = new IntPages(width * height);
+        this.types = new IntPages(width * height, Building.Type.VOID.ordinal());
+        this.buildings = new BuildingPages();
+        this.buildings.set(0, Building.VOID);
+        this.freeIds = new IntPages(0);
+        this.nextId = 1;
+        this.coverage = new CoverageLayers(width, height);
+        this.distances = new DistanceLayers(width, height);
+        this.byType = new BuildingIndex();
+        this.residents = new ResidentialCounts(width, height);
+        this.services = new ServiceHeap();
+        this.serviceBoxes = new ServiceBoxes();
+        this.editable = new Area(0, 0, width, height);
 
         int yRoad = height / 2;
 
         // only one building for the whole road
         var mainRoad = new Building(Building.Characteristics.ROAD);
+        int roadId = register(mainRoad);
         this.start = new Coordinates(0, yRoad);
+        this.roads = new RoadNetwork(width, height, index(0, yRoad));
+        this.rails = new RailNetwork(width, height);
 
         // horizontal road in the middle
         for (int x = 0; x < width; x++) {
-            Coordinates c = new Coordinates(x, yRoad);
-            grid[yRoad][x] = c;
-            coords_to_building.put(c, mainRoad);
-            mainRoad.addCoord(c);
+            setCell(index(x, yRoad), roadId);
+        }
+        mainRoad.place(0, yRoad, width, 1);
+        indexPlaced(roadId, mainRoad);
+    }
+
+    private City(City other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.start = other.start;
+        this.cells = other.cells.share();
+        this.types = other.types.share();
+        this.buildings = other.buildings.share();
+        this.freeIds = other.freeIds.share();
+        this.freeCount = other.freeCount;
+        this.nextId = other.nextId;
+        this.coverage = new CoverageLayers(other.coverage);
+        this.distances = new DistanceLayers(other.distances);
+        this.byType = new BuildingIndex(other.byType);
+        this.residents = new ResidentialCounts(other.residents);
+        this.services = new ServiceHeap(other.services);
+        this.serviceBoxes = new ServiceBoxes(other.serviceBoxes);
+        this.roads = new RoadNetwork(other.roads);
+        this.rails = new RailNetwork(other.rails);
+        this.editable = other.editable;
+    }
+
+    private City(DataInput in) throws IOException {
+        this.width = in.readInt();
+        this.height = in.readInt();
+        this.start = new Coordinates(in.readInt(), in.readInt());
+        this.editable = new Area(in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        this.freeCount = in.readInt();
+        this.nextId = in.readInt();
+        this.cells = new IntPages(in);
+        this.types = new IntPages(in);
+        this.buildings = new BuildingPages(in, nextId);
+        this.freeIds = new IntPages(in);
+        this.coverage = new CoverageLayers(width, height, in);
+        this.distances = new DistanceLayers(width, height, in);
+        this.byType = new BuildingIndex(in);
+        this.residents = new ResidentialCounts(width, height, in);
+        this.services = new ServiceHeap(in);
+        this.serviceBoxes = new ServiceBoxes(byType, buildings);
+        this.roads = new RoadNetwork(width, height, index(start.x, start.y), in);
+        this.rails = new RailNetwork(width, height, in);
+    }
+
+    private void indexPlaced(int id, Building b) {
+        coverage.stamp(b, 1);
+        distances.placed(b);
+        byType.placed(id, b);
+        if (ServiceHeap.isService(b.chars().type)) {
+            services.insert(id, residencesInReach(b));
+            serviceBoxes.placed(id, b);
         }
+    }
 
-        for (int y = 0; y < height; y++) {
-            if (y == yRoad) continue; // déjà fait
-            for (int x = 0; x < width; x++) {
-                Coordinates c = new Coordinates(x, y);
-                grid[y][x] = c;
-                var newB = new Building(Building.Characteristics.VOID);
-                coords_to_building.put(c, newB);
-                newB.addCoord(c);
+    private void indexRemoved(int id, Building b) {
+        coverage.stamp(b, -1);
+        distances.removed(b);
+        byType.removed(id, b);
+        if (ServiceHeap.isService(b.chars().type)) {
+            services.remove(id);
+            serviceBoxes.removed(id, b);
+        }
+    }
+
+    // a residential cell appeared (delta = 1) or disappeared (-1)
+    private void residentialChanged(int index, int delta) {
+        int x = x(index), y = y(index);
+        residents.add(x, y, delta);
+        if (reachHits.length < serviceBoxes.size()) reachHits = new int[Math.max(16, 2 * serviceBoxes.size())];
+        int n = serviceBoxes.inReach(x, y, reachHits);
+        for (int k = 0; k < n; k++) services.adjust(reachHits[k], delta);
+    }
+
+    private void write(int index, int id) {
+        if (recording) {
+            if (journalSize == journalCells.length) {
+                int n = Math.max(16, journalSize * 2);
+                journalCells = Arrays.copyOf(journalCells, n);
+                journalIds = Arrays.copyOf(journalIds, n);
+                journalBuildings = Arrays.copyOf(journalBuildings, n);
             }
+            journalCells[journalSize] = index;
+            journalIds[journalSize] = cells.get(index);
+            journalBuildings[journalSize] = buildings.get(journalIds[journalSize]);
+            journalSize++;
+        }
+        setCell(index, id);
+    }
+
+    private void setCell(int index, int id) {
+        Building.Type before = typeAt(index), after = buildings.get(id).chars().type;
+        cells.set(index, id);
+        types.set(index, after.ordinal());
+        if (before != after) {
+            if (before == Building.Type.RESIDENTIAL) residentialChanged(index, -1);
+            else if (after == Building.Type.RESIDENTIAL) residentialChanged(index, 1);
         }
+        roads.cellChanged(this, index, before, after);
+        rails.cellChanged(this, index, before, after);
+    }
+
+    private void logTableOp(int op, int id, Building b) {
+        if (!recording) return;
+        if (tableOpCount == tableOps.length) {
+            int n = Math.max(8, tableOpCount * 2);
+            tableOps = Arrays.copyOf(tableOps, n);
+            tableBuildings = Arrays.copyOf(tableBuildings, n);
+        }
+        tableOps[tableOpCount] = id << 2 | op;
+        tableBuildings[tableOpCount] = b;
+        tableOpCount++;
+    }
+
+    /**
+     * Starts a journal of the following mutations, so that they can be listed and undone.
+     * Ends with {@link #commitChanges()} or {@link #rollbackChanges()}.
+     */
+    public void beginChanges() {
+        journalSize = 0;
+        tableOpCount = 0;
+        recording = true;
+        roads.flips.start();
+        rails.flips.start();
+    }
+
+    /**
+     * Number of cell writes since {@link #beginChanges()}. A cell written several times appears more than once.
+     */
+    public int changeCount() {
+        return journalSize;
+    }
+
+    /**
+     * Index of the cell written by the k-th change.
+     */
+    public int changedCell(int k) {
+        return journalCells[k];
+    }
+
+    /**
+     * Building id held by the cell before the k-th change.
+     */
+    public int previousId(int k) {
+        return journalIds[k];
+    }
+
+    /**
+     * Building held by the cell before the k-th change, VOID for an empty cell.
+     */
+    public Building previousBuilding(int k) {
+        return journalBuildings[k];
+    }
+
+    /**
+     * Keeps the journaled mutations and stops journaling.
+     */
+    public void commitChanges() {
+        Arrays.fill(journalBuildings, 0, journalSize, null);
+        Arrays.fill(tableBuildings, 0, tableOpCount, null);
+        journalSize = 0;
+        tableOpCount = 0;
+        recording = false;
+        roads.flips.stop();
+        rails.flips.stop();
+    }
+
+    /**
+     * Undoes every mutation since {@link #beginChanges()}, in O(changed cells), and stops journaling.
+     * Placements and removals are undone in reverse order, so the indexes see consistent states.
+     */
+    public void rollbackChanges() {
+        recording = false;
+        for (int k = tableOpCount - 1; k >= 0; k--) {
+            int id = tableOps[k] >>> 2;
+            Building b = tableBuildings[k];
+            int op = tableOps[k] & 3;
+            if (op == OP_FREE) {
+                freeCount--;
+                buildings.set(id, b);
+                fill(b, id, false);
+                indexPlaced(id, b);
+            } else {
+                fill(b, 0, false);
+                buildings.set(id, null);
+                if (op == OP_REUSE) pushFreeId(id);
+                else nextId--;
+                indexRemoved(id, b);
+            }
+        }
+        commitChanges();
+    }
+
+    private int register(Building b) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds.get(--freeCount);
+            logTableOp(OP_REUSE, id, b);
+        } else {
+            id = nextId++;
+            logTableOp(OP_GROW, id, b);
+        }
+        buildings.set(id, b);
+        return id;
+    }
+
+    private void unregister(int id) {
+        logTableOp(OP_FREE, id, buildings.get(id));
+        buildings.set(id, null);
+        pushFreeId(id);
+    }
+
+    private void pushFreeId(int id) {
+        freeIds.grow(freeCount + 1);
+        freeIds.set(freeCount++, id);
     }
 
     public boolean inside(Coordinates c) {
         return !c.equals(this.start) && c.x >= 0 && c.x < width && c.y >= 0 && c.y < height;
     }
 
+    /**
+     * Restricts edits to an area: {@link #setBuilding} then only places buildings whose whole footprint
+     * lies in it, and {@link #rmBuilding} only removes buildings lying entirely in it. The rest of the
+     * city is frozen but still read by every index. A null area lifts the restriction.
+     */
+    public void restrictEdits(Area area) {
+        this.editable = area != null ? area : new Area(0, 0, width, height);
+    }
+
+    public Area editableArea() {
+        return editable;
+    }
+
+    /**
+     * Whether every cell of the building lies in the editable area.
+     */
+    public boolean isEditable(Building b) {
+        return !b.isPlaced() || (b.x0() >= editable.x0 && b.x1() <= editable.x1
+                && b.y0() >= editable.y0 && b.y1() <= editable.y1);
+    }
+
+    private boolean restricted() {
+        return editable.size() != width * height;
+    }
+
+    public boolean inBounds(int x, int y) {
+        return x >= 0 && x < width && y >= 0 && y < height;
+    }
+
     public int getWidth() {
         return width;
     }
@@ -72,59 +387,351 @@ public final class City {
         return height;
     }
 
+    /**
+     * Row-major cell index used by the dense storage.
+     */
+    public int index(int x, int y) {
+        return y * width + x;
+    }
+
+    /**
+     * Building id stored at a cell index, 0 when the cell is empty.
+     */
+    public int idAt(int index) {
+        return cells.get(index);
+    }
+
+    /**
+     * Building registered under an id; id 0 is the shared VOID building.
+     */
+    public Building buildingById(int id) {
+        return buildings.get(id);
+    }
+
+    public Building buildingAt(int x, int y) {
+        return buildings.get(cells.get(y * width + x));
+    }
+
+    public Building.Type typeAt(int x, int y) {
+        return typeAt(y * width + x);
+    }
+
+    public Building.Type typeAt(int index) {
+        return TYPES[types.get(index)];
+    }
+
+    /**
+     * Whether a cell lies in the radius of a building of the given kind: fire, police, health,
+     * or transit for railway stations.
+     */
+    public boolean isCovered(Building.Kind kind, int index) {
+        return coverage.count(kind, index) > 0;
+    }
+
+    /**
+     * Number of buildings of the given kind whose radius contains the cell, see {@link #isCovered}.
+     */
+    public int coverage(Building.Kind kind, int index) {
+        return coverage.count(kind, index);
+    }
+
+    /**
+     * Manhattan distance from a cell to the nearest cell of a park, school or railway station,
+     * {@link Integer#MAX_VALUE} when the city has none of that type.
+     */
+    public int distanceTo(Building.Type type, int index) {
+        if (!DistanceLayers.tracked(type)) throw new IllegalArgumentException("No distance field for " + type);
+        return distances.distance(this, type, index);
+    }
+
+    /**
+     * Whether a cell is linked to the start through roads and crossings. The start itself is always linked.
+     */
+    public boolean isRoadConnected(int index) {
+        return roads.connected(index);
+    }
+
+    /**
+     * Number of cells linked to the start, the start included, see {@link #isRoadConnected}.
+     */
+    public int roadConnectedCount() {
+        return roads.connectedCount();
+    }
+
+    /**
+     * Number of connectivity changes since {@link #beginChanges()}. A cell can appear more than once.
+     */
+    public int roadFlipCount() {
+        return roads.flips.count();
+    }
+
+    /**
+     * Index of the cell whose connectivity changed in the k-th flip.
+     */
+    public int roadFlipCell(int k) {
+        return roads.flips.cell(k);
+    }
+
+    /**
+     * Whether the cell of the k-th flip became connected (or disconnected).
+     */
+    public boolean roadFlipConnected(int k) {
+        return roads.flips.status(k);
+    }
+
+    /**
+     * Whether a cell is a rail, station or crossing linked to a railway station through the railway.
+     */
+    public boolean isRailLinkedToStation(int index) {
+        return rails.linkedToStation(index);
+    }
+
+    /**
+     * Number of rail cells in a railway component without any station.
+     */
+    public int orphanRailCount() {
+        return rails.orphanRails();
+    }
+
+    /**
+     * Number of station cells with no rail or crossing next to them.
+     */
+    public int stationCellsWithoutRail() {
+        return rails.bareStations();
+    }
+
+    /**
+     * Number of railway linkage changes since {@link #beginChanges()}, see {@link #roadFlipCount()}.
+     */
+    public int railFlipCount() {
+        return rails.flips.count();
+    }
+
+    /**
+     * Index of the cell whose linkage changed in the k-th flip.
+     */
+    public int railFlipCell(int k) {
+        return rails.flips.cell(k);
+    }
+
+    /**
+     * Whether the cell of the k-th flip became linked to a station (or unlinked).
+     */
+    public boolean railFlipLinked(int k) {
+        return rails.flips.status(k);
+    }
+
+    /**
+     * Exclusive upper bound of the building ids currently in use.
+     */
+    public int idBound() {
+        return nextId;
+    }
+
+    /**
+     * Live buildings in id order, each listed once (VOID is never included).
+     */
+    public List<Building> buildings() {
+        List<Building> res = new ArrayList<>();
+        for (int id = 1; id < nextId; id++) {
+            Building b = buildings.get(id);
+            if (b != null) res.add(b);
+        }
+        return res;
+    }
+
+    /**
+     * Live buildings of a type, in no particular order.
+     */
+    public List<Building> buildings(Building.Type type) {
+        int n = byType.count(type);
+        List<Building> res = new ArrayList<>(n);
+        for (int k = 0; k < n; k++) res.add(building(type, k));
+        return res;
+    }
+
+    /**
+     * The k-th live building of a type, for k below {@link #count(Building.Type)}; the order changes
+     * with placements and removals.
+     */
+    public Building building(Building.Type type, int k) {
+        return buildings.get(byType.id(type, k));
+    }
+
+    /**
+     * Number of live buildings of a type, kept up to date on every placement and removal.
+     */
+    public int count(Building.Type type) {
+        return byType.count(type);
+    }
+
+    public int count(Building.Kind kind) {
+        int n = 0;
+        for (Building.Type t : TYPES) {
+            if (t.getKind() == kind) n += byType.count(t);
+        }
+        return n;
+    }
+
+    /**
+     * Number of cells of the area holding a building of the type.
+     */
+    public int countCells(Building.Type type, Area area) {
+        if (type == Building.Type.RESIDENTIAL) return residents.count(area.x0, area.y0, area.x1, area.y1);
+        int n = 0;
+        for (int y = area.y0; y < area.y1; y++) {
+            n += types.count(index(area.x0, y), index(area.x1, y), type.ordinal());
+        }
+        return n;
+    }
+
+    /**
+     * Number of residential cells within the radii of a building, measured from its first cell.
+     */
+    public int residencesInReach(Building b) {
+        if (!b.isPlaced()) return 0;
+        int rx = b.chars().radius_x, ry = b.chars().radius_y;
+        return residents.count(Math.max(0, b.x0() - rx), Math.max(0, b.y0() - ry),
+                Math.min(width, b.x0() + rx + 1), Math.min(height, b.y0() + ry + 1));
+    }
+
+    /**
+     * The police, fire or railway station, clinic, school or park with the fewest residences in reach,
+     * null when the city has none. Ties are broken arbitrarily.
+     */
+    public Building leastUsefulService() {
+        int id = services.top();
+        return id < 0 ? null : buildings.get(id);
+    }
+
+    /**
+     * Total {@link Building#getCost()} of the live buildings, kept up to date like {@link #count}.
+     */
+    public double totalCost() {
+        return byType.totalCost();
+    }
+
     public boolean hasBuilding(Coordinates c) {
         if (!inside(c)) return false;
-        return coords_to_building.get(c).chars() != Building.Characteristics.VOID;
+        return cells.get(index(c.x, c.y)) != 0;
     }
 
-    public boolean setBuilding(Coordinates c, Building b) {
-        if (!inside(c) || hasBuilding(c)) return false;
-
-        boolean ne_flag = true, se_flag = true, nw_flag = true, sw_flag = true;
-        HashMap<String, List<Coordinates>> coords = new HashMap<>();
-        coords.put("ne", new ArrayList<>());
-        coords.put("se", new ArrayList<>());
-        coords.put("nw", new ArrayList<>());
-        coords.put("sw", new ArrayList<>());
-
-        for (int y = 0; y < b.chars().y; y++) {
-            for (int x = 0; x < b.chars().x; x++) {
-
-                var ne = new Coordinates(c.x + x, c.y + y);
-                coords.get("ne").add(ne);
-                var se = new Coordinates(c.x + x, c.y - y);
-                coords.get("se").add(se);
-                var nw = new Coordinates(c.x - x, c.y + y);
-                coords.get("nw").add(nw);
-                var sw = new Coordinates(c.x - x, c.y - y);
-                coords.get("sw").add(sw);
-                if (!inside(ne) || hasBuilding(ne)) ne_flag = false;
-                if (!inside(se) || hasBuilding(se)) se_flag = false;
-                if (!inside(nw) || hasBuilding(nw)) nw_flag = false;
-                if (!inside(sw) || hasBuilding(sw)) sw_flag = false;
-
-                if (!ne_flag && !se_flag && !nw_flag && !sw_flag) return false;
+    private boolean freeRect(int x0, int y0, int dx, int dy, int w, int h) {
+        int startIndex = index(start.x, start.y);
+        for (int y = 0; y < h; y++) {
+            for (int x = 0; x < w; x++) {
+                int cx = x0 + dx * x, cy = y0 + dy * y;
+                if (!inBounds(cx, cy) || !editable.contains(cx, cy)) return false;
+                int i = index(cx, cy);
+                if (i == startIndex || cells.get(i) != 0) return false;
             }
         }
-        String winner = "";
-        if (ne_flag) winner = "ne";
-        else if (se_flag) winner = "se";
-        else if (nw_flag) winner = "nw";
-        else if (sw_flag) winner = "sw";
-        for (var cd : coords.get(winner)) {
-            coords_to_building.put(cd, b);
-            b.coords().add(cd);
+        return true;
+    }
+
+    // writes id over the footprint of b, through the journal or not
+    private void fill(Building b, int id, boolean journaled) {
+        for (int y = b.y0(); y < b.y1(); y++) {
+            for (int x = b.x0(); x < b.x1(); x++) {
+                if (journaled) write(index(x, y), id);
+                else setCell(index(x, y), id);
+            }
+        }
+    }
+
+    /**
+     * Places a new building with a corner on c, trying the four orientations in turn. A building that was
+     * already placed, here or in a snapshot, is refused: placed buildings are shared between snapshots and
+     * never move.
+     */
+    public boolean setBuilding(Coordinates c, Building b) {
+        if (!inside(c) || hasBuilding(c) || b.isPlaced()) return false;
+        // a VOID building never occupies its cell
+        if (b.chars() == Building.Characteristics.VOID) return true;
+
+        int w = b.chars().x, h = b.chars().y;
+        // orientations tried in order: ne, se, nw, sw
+        int dx, dy;
+        if (freeRect(c.x, c.y, 1, 1, w, h)) {
+            dx = 1;
+            dy = 1;
+        } else if (freeRect(c.x, c.y, 1, -1, w, h)) {
+            dx = 1;
+            dy = -1;
+        } else if (freeRect(c.x, c.y, -1, 1, w, h)) {
+            dx = -1;
+            dy = 1;
+        } else if (freeRect(c.x, c.y, -1, -1, w, h)) {
+            dx = -1;
+            dy = -1;
+        } else {
+            return false;
         }
+
+        int id = register(b);
+        b.place(dx > 0 ? c.x : c.x - w + 1, dy > 0 ? c.y : c.y - h + 1, w, h);
+        fill(b, id, true);
+        indexPlaced(id, b);
         return true;
     }
 
     public void rmBuilding(Coordinates c) {
-        if (!inside(c) || !hasBuilding(c) || !coords_to_building.containsKey(c)) return;
-        var temp = coords_to_building.get(c).coords();
-        for (var t : temp) {
-            coords_to_building.remove(t);
-            coords_to_building.put(t, new Building(Building.Characteristics.VOID));
+        if (!inside(c) || !hasBuilding(c)) return;
+        int id = cells.get(index(c.x, c.y));
+        Building b = buildings.get(id);
+        if (restricted() && !isEditable(b)) return;
+        fill(b, 0, true);
+        indexRemoved(id, b);
+        unregister(id);
+    }
+
+    /**
+     * Puts back a building previously removed with {@link #rmBuilding}, on its own coordinates.
+     * Unlike {@link #setBuilding} it may cover the start cell, as the main road does.
+     *
+     * @throws IllegalArgumentException if the building is not placed, reaches out of the grid or of the
+     *                                  editable area, or covers a cell that is not empty
+     */
+    public void restoreBuilding(Building b) {
+        if (!b.isPlaced() || b.chars() == Building.Characteristics.VOID) {
+            throw new IllegalArgumentException("Building has no footprint");
+        }
+        if (b.x0() < 0 || b.y0() < 0 || b.x1() > width || b.y1() > height) {
+            throw new IllegalArgumentException("Building out of the city: " + b.footprint());
+        }
+        if (!isEditable(b)) throw new IllegalArgumentException("Building out of the editable area: " + b.footprint());
+        for (int y = b.y0(); y < b.y1(); y++) {
+            for (int x = b.x0(); x < b.x1(); x++) {
+                if (cells.get(index(x, y)) != 0) {
+                    throw new IllegalArgumentException("Cell (" + x + ", " + y + ") is not empty");
+                }
+            }
         }
+        int id = register(b);
+        fill(b, id, true);
+        indexPlaced(id, b);
+    }
+
+    /**
+     * Index of the neighbour of a cell in direction d, -1 outside the grid. Directions 0 to 3 are +x, -x,
+     * +y and -y, the order of {@link #neighbors4}; loops over them allocate nothing.
+     */
+    public int neighbor(int index, int d) {
+        int x = index % width, y = index / width;
+        return switch (d) {
+            case 0 -> x + 1 < width ? index + 1 : -1;
+            case 1 -> x - 1 >= 0 ? index - 1 : -1;
+            case 2 -> y + 1 < height ? index + width : -1;
+            default -> y - 1 >= 0 ? index - width : -1;
+        };
+    }
+
+    public int x(int index) {
+        return index % width;
+    }
+
+    public int y(int index) {
+        return index / width;
     }
 
     public List<Coordinates> neighbors4(Coordinates c) {
@@ -138,33 +745,67 @@ public final class City {
         return res;
     }
 
-    public City deepCopy() {
-        City c = new City(this.width, this.height);
-        c.coords_to_building.clear();
-
-        // mapping ancient building -> new building
-        var map = new HashMap<Building, Building>();
-
-        for (var entry : this.coords_to_building.entrySet()) {
-            Coordinates coord = entry.getKey();
-            Building oldB = entry.getValue();
+    /**
+     * An independent copy of the city, in O(pages): the grid, the building table and every index are
+     * paged and shared copy-on-write, so the first write of either city to a shared page copies that
+     * page only. Placed buildings never change and are shared as well. Taking a snapshot is cheap enough
+     * to keep the best city of a run at every improvement.
+     * <p>
+     * The journal is not copied. A city must be snapshotted from the thread that mutates it; the snapshot
+     * can then be handed to another thread.
+     */
+    public City snapshot() {
+        return new City(this);
+    }
 
-            Building clone = map.computeIfAbsent(oldB, b -> new Building(b.chars()));
-            clone.addCoord(coord);
+    /**
+     * A copy like {@link #snapshot()} that also copies the buildings, so that none is shared with this city.
+     */
+    public City deepCopy() {
+        City copy = new City(this);
+        copy.buildings = buildings.copyBuildings();
+        return copy;
+    }
 
-            c.coords_to_building.put(coord, clone);
-        }
-        c.start = this.start;
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                c.grid[y][x] = new Coordinates(x, y);
-            }
-        }
+    /**
+     * Writes the whole state of the city, indexes included, so that {@link #readState} gives back a city
+     * that evolves exactly like this one under the same mutations: ids, the order of the building lists,
+     * the service heap and the network trees all decide what later mutations pick. Meant for checkpoints
+     * of a run rather than as an exchange format. Cities that are journaling changes are refused.
+     */
+    public void writeState(DataOutput out) throws IOException {
+        if (recording) throw new IllegalStateException("Changes of the city are being journaled");
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeInt(start.x);
+        out.writeInt(start.y);
+        out.writeInt(editable.x0);
+        out.writeInt(editable.y0);
+        out.writeInt(editable.x1);
+        out.writeInt(editable.y1);
+        out.writeInt(freeCount);
+        out.writeInt(nextId);
+        cells.write(out);
+        types.write(out);
+        buildings.write(out, nextId);
+        freeIds.write(out);
+        coverage.write(out);
+        distances.write(out);
+        byType.write(out);
+        residents.write(out);
+        services.write(out);
+        roads.write(out);
+        rails.write(out);
+    }
 
-        return c;
+    /**
+     * Reads a city written by {@link #writeState}.
+     */
+    public static City readState(DataInput in) throws IOException {
+        return new City(in);
     }
 
-    public static City randomInitialCity(int width, int height, Random rnd) {
+    public static City randomInitialCity(int width, int height, RandomGenerator rnd) {
         City city = new City(width, height);
 
         int yRoad = height / 2;
@@ -174,7 +815,7 @@ public final class City {
             int x = rnd.nextInt(width);
             int y = yRoad + (rnd.nextBoolean() ? -1 : 1);
             Coordinates c = new Coordinates(x, y);
-            if (city.coords_to_building.get(c).chars() == Building.Characteristics.VOID) {
+            if (city.buildingAt(c).chars() == Building.Characteristics.VOID) {
                 city.setBuilding(c, new Building(Building.Characteristics.RESIDENTIAL));
             }
         }
@@ -182,7 +823,7 @@ public final class City {
         // some public buildings randomly placed
         for (int i = 0; i < 6; i++) {
             Coordinates c = new Coordinates(rnd.nextInt(width), rnd.nextInt(height));
-            if (city.coords_to_building.get(c).chars().type == Building.Type.VOID) {
+            if (city.buildingAt(c).chars().type == Building.Type.VOID) {
                 city.setBuilding(c, new Building(Building.Characteristics.values()[rnd.nextInt(Building.Characteristics.values().length)]));
             }
         }
@@ -205,7 +846,7 @@ public final class City {
             StringBuilder sb = new StringBuilder();
             for (int x = 0; x < this.getWidth(); x++) {
                 Coordinates c = new Coordinates(x, y);
-                Building b = this.coords_to_building.get(c);
+                Building b = buildingAt(x, y);
                 char ch;
 
                 if (b.chars() == Building.Characteristics.VOID) {
@@ -261,24 +902,77 @@ public final class City {
     @Override
     public boolean equals(Object o) {
         if (!(o instanceof City city)) return false;
-        return getWidth() == city.getWidth() && getHeight() == city.getHeight() && Objects.equals(coords_to_building, city.coords_to_building) && Objects.equals(start, city.start) && Objects.deepEquals(grid, city.grid);
+        if (getWidth() != city.getWidth() || getHeight() != city.getHeight() || !Objects.equals(start, city.start))
+            return false;
+        for (int i = 0; i < width * height; i++) {
+            if (!Building.sameFootprint(buildingById(idAt(i)), city.buildingById(city.idAt(i)))) return false;
+        }
+        return true;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(coords_to_building, getWidth(), getHeight(), start, Arrays.deepHashCode(grid));
+        int h = Objects.hash(getWidth(), getHeight(), start);
+        for (int i = 0; i < width * height; i++) {
+            h = 31 * h + buildingById(idAt(i)).chars().hashCode();
+        }
+        return h;
     }
 
     public Building buildingAt(City.Coordinates c) {
-        return this.coords_to_building.get(c);
+        if (!inBounds(c.x, c.y)) return null;
+        return buildings.get(cells.get(index(c.x, c.y)));
     }
 
     public void removeResidentialBuilding(Building bRes) {
         if (bRes == null || bRes.chars().type != Building.Type.RESIDENTIAL) return;
-        // copy to avoid modification
-        var cells = new ArrayList<>(bRes.coords());
-        for (City.Coordinates c : cells) {
-            this.rmBuilding(c);
+        // any cell of the building removes all of it
+        this.rmBuilding(new Coordinates(bRes.x0(), bRes.y0()));
+    }
+
+    private final class CellView extends AbstractMap<Coordinates, Building> {
+        @Override
+        public Building get(Object key) {
+            return key instanceof Coordinates c ? buildingAt(c) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Coordinates c && inBounds(c.x, c.y);
+        }
+
+        @Override
+        public int size() {
+            return width * height;
+        }
+
+        @Override
+        public Set<Entry<Coordinates, Building>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<Coordinates, Building>> iterator() {
+                    return new Iterator<>() {
+                        int i = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < width * height;
+                        }
+
+                        @Override
+                        public Entry<Coordinates, Building> next() {
+                            if (!hasNext()) throw new NoSuchElementException();
+                            var c = new Coordinates(i % width, i / width);
+                            return new SimpleImmutableEntry<>(c, buildingById(idAt(i++)));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return width * height;
+                }
+            };
         }
     }
 }
@@ -0,0 +1,281 @@
+package org.titiplex.city;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary layout of cities, to store them and read them back in another process. A file holds any number of
+ * records one after the other, each one a city:
+ * <pre>
+ * int   magic "CITY"
+ * byte  version
+ * byte  bytes per cell id, 2 or 4
+ * int   width, height
+ * int   n, the number of buildings, in id order, so the main road first unless it was removed
+ * n *   short characteristics ordinal, char x0, y0, w, h
+ * width * height * cell id, 0 for an empty cell, k for the k-th building of the table
+ * </pre>
+ * The layout holds the buildings only: indexes are rebuilt on reading, and building ids follow the order
+ * of the table. Cell ids are redundant with the footprints and are checked against them.
+ * <p>
+ * {@link Writer} appends records to a file through its channel; {@link Reader} maps the file and decodes
+ * one record at a time, from any number of threads, so that a file far larger than the heap can be read.
+ */
+public final class CityFile {
+
+    private static final int MAGIC = 0x43495459;
+    private static final byte VERSION = 1;
+    private static final int HEADER = 4 + 1 + 1 + 4 + 4 + 4;
+    private static final int BUILDING = 2 + 4 * 2;
+    // records are mapped in segments of at most this many bytes, a record larger than that on its own
+    private static final long SEGMENT = 1L << 30;
+    private static final Building.Characteristics[] CHARACTERISTICS = Building.Characteristics.values();
+
+    private CityFile() {
+    }
+
+    /**
+     * Size of the record of a city, in bytes.
+     */
+    public static int size(City city) {
+        return size(city.width, city.height, city.buildings().size(), idBytes(city.buildings().size()));
+    }
+
+    private static int size(int width, int height, int buildings, int idBytes) {
+        long size = recordSize(width, height, buildings, idBytes);
+        if (size > Integer.MAX_VALUE) throw new IllegalArgumentException("City too large for a record");
+        return (int) size;
+    }
+
+    private static long recordSize(int width, int height, int buildings, int idBytes) {
+        return HEADER + (long) buildings * BUILDING + (long) width * height * idBytes;
+    }
+
+    private static int idBytes(int buildings) {
+        return buildings <= Character.MAX_VALUE ? 2 : 4;
+    }
+
+    /**
+     * Writes the record of the city at the position of the buffer, see {@link #size(City)}.
+     */
+    public static void write(City city, ByteBuffer out) {
+        if (city.width > Character.MAX_VALUE || city.height > Character.MAX_VALUE) {
+            throw new IllegalArgumentException("City too large for the layout");
+        }
+        List<Building> table = city.buildings();
+        int idBytes = idBytes(table.size());
+        out.putInt(MAGIC);
+        out.put(VERSION);
+        out.put((byte) idBytes);
+        out.putInt(city.width);
+        out.putInt(city.height);
+        out.putInt(table.size());
+        // ids in the file are positions in the table, 1-based
+        int[] fileId = new int[city.idBound()];
+        for (int k = 0; k < table.size(); k++) {
+            Building b = table.get(k);
+            out.putShort((short) b.chars().ordinal());
+            out.putChar((char) b.x0());
+            out.putChar((char) b.y0());
+            out.putChar((char) (b.x1() - b.x0()));
+            out.putChar((char) (b.y1() - b.y0()));
+            fileId[city.idAt(city.index(b.x0(), b.y0()))] = k + 1;
+        }
+        for (int i = 0; i < city.width * city.height; i++) {
+            int id = fileId[city.idAt(i)];
+            if (idBytes == 2) out.putChar((char) id);
+            else out.putInt(id);
+        }
+    }
+
+    /**
+     * Reads the record at the position of the buffer into a new city.
+     *
+     * @throws IllegalArgumentException when the record is not a valid layout
+     */
+    public static City read(ByteBuffer in) {
+        if (in.getInt() != MAGIC) throw new IllegalArgumentException("Not a city record");
+        byte version = in.get();
+        if (version != VERSION) throw new IllegalArgumentException("Unsupported city record version " + version);
+        int idBytes = in.get(), width = in.getInt(), height = in.getInt(), n = in.getInt();
+        if ((idBytes != 2 && idBytes != 4) || n < 0) throw new IllegalArgumentException("Corrupt city record");
+
+        City city = new City(width, height);
+        if (n == 0) removeMainRoad(city);
+        for (int k = 0; k < n; k++) {
+            int c = in.getShort();
+            int x0 = in.getChar(), y0 = in.getChar(), w = in.getChar(), h = in.getChar();
+            if (c < 0 || c >= CHARACTERISTICS.length) throw new IllegalArgumentException("Corrupt city record");
+            Building b = new Building(CHARACTERISTICS[c], new City.Area(x0, y0, x0 + w, y0 + h));
+            if (k == 0 && isMainRoad(city, b)) continue;
+            if (k == 0) removeMainRoad(city);
+            if (w != b.chars().x || h != b.chars().y || !free(city, b)) {
+                throw new IllegalArgumentException("Corrupt city record: building " + k);
+            }
+            city.restoreBuilding(b);
+        }
+        // ids of a new city follow the order of the table
+        for (int i = 0; i < width * height; i++) {
+            int id = idBytes == 2 ? in.getChar() : in.getInt();
+            if (id != city.idAt(i)) throw new IllegalArgumentException("Corrupt city record: cell " + i);
+        }
+        return city;
+    }
+
+    private static boolean isMainRoad(City city, Building b) {
+        return b.chars() == Building.Characteristics.ROAD
+                && new City.Area(0, city.start.y(), city.width, city.start.y() + 1).equals(b.footprint());
+    }
+
+    // the main road placed by the constructor was removed from the stored city
+    private static void removeMainRoad(City city) {
+        city.rmBuilding(new City.Coordinates(city.width - 1, city.start.y()));
+    }
+
+    private static boolean free(City city, Building b) {
+        if (b.x1() > city.width || b.y1() > city.height) return false;
+        int start = city.index(city.start.x(), city.start.y());
+        for (int y = b.y0(); y < b.y1(); y++) {
+            for (int x = b.x0(); x < b.x1(); x++) {
+                int i = city.index(x, y);
+                if (i == start || city.idAt(i) != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Appends records to a file, created or truncated on opening.
+     */
+    public static final class Writer implements AutoCloseable {
+
+        private final FileChannel channel;
+        private ByteBuffer buffer = ByteBuffer.allocate(0);
+        private int count;
+
+        public Writer(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+
+        public void append(City city) throws IOException {
+            int size = size(city);
+            if (buffer.capacity() < size) buffer = ByteBuffer.allocate(size);
+            buffer.clear();
+            write(city, buffer);
+            buffer.flip();
+            while (buffer.hasRemaining()) channel.write(buffer);
+            count++;
+        }
+
+        /**
+         * Number of records appended so far.
+         */
+        public int count() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Opens a file of records: it is scanned for the offsets of the records, then mapped in segments.
+     */
+    public static Reader open(Path file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * Records of a mapped file, decoded on demand. Reads are thread-safe: the mapped segments are only
+     * accessed through absolute slices.
+     */
+    public static final class Reader implements AutoCloseable {
+
+        private final FileChannel channel;
+        // segment and position in it of each record
+        private final int[] segmentOf, offsetIn;
+        private final MappedByteBuffer[] segments;
+
+        private Reader(Path file) throws IOException {
+            this.channel = FileChannel.open(file, StandardOpenOption.READ);
+            try {
+                long length = channel.size();
+                List<Long> offsets = new ArrayList<>();
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                for (long p = 0; p < length; ) {
+                    header.clear();
+                    while (header.hasRemaining()) {
+                        if (channel.read(header, p + header.position()) < 0) {
+                            throw new IOException("Corrupt city file, truncated record at " + p + ": " + file);
+                        }
+                    }
+                    int idBytes = header.get(5);
+                    int width = header.getInt(6), height = header.getInt(10), n = header.getInt(14);
+                    // dimensions are chars in the layout, so a checked header has a positive size that fits a long
+                    if (header.getInt(0) != MAGIC || (idBytes != 2 && idBytes != 4) || width <= 0 || height <= 0
+                            || width > Character.MAX_VALUE || height > Character.MAX_VALUE || n < 0) {
+                        throw new IOException("Corrupt city file: " + file);
+                    }
+                    long size = recordSize(width, height, n, idBytes);
+                    if (size > Integer.MAX_VALUE) throw new IOException("Corrupt city file: " + file);
+                    offsets.add(p);
+                    p += size;
+                    if (p > length) throw new IOException("Corrupt city file, truncated record at " + (p - size) + ": " + file);
+                }
+                offsets.add(length);
+
+                int n = offsets.size() - 1;
+                this.segmentOf = new int[n];
+                this.offsetIn = new int[n];
+                List<MappedByteBuffer> segments = new ArrayList<>();
+                for (int k = 0; k < n; ) {
+                    long start = offsets.get(k);
+                    int last = k;
+                    // records are added to the segment while it stays under SEGMENT, and always at least one
+                    while (last + 1 < n && offsets.get(last + 2) - start <= SEGMENT) last++;
+                    long end = offsets.get(last + 1);
+                    for (int r = k; r <= last; r++) {
+                        segmentOf[r] = segments.size();
+                        offsetIn[r] = (int) (offsets.get(r) - start);
+                    }
+                    segments.add(channel.map(FileChannel.MapMode.READ_ONLY, start, end - start));
+                    k = last + 1;
+                }
+                this.segments = segments.toArray(new MappedByteBuffer[0]);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public int size() {
+            return segmentOf.length;
+        }
+
+        /**
+         * Decodes the k-th record, see {@link CityFile#read(ByteBuffer)}.
+         */
+        public City read(int k) {
+            MappedByteBuffer segment = segments[segmentOf[k]];
+            int end = k + 1 < segmentOf.length && segmentOf[k + 1] == segmentOf[k] ? offsetIn[k + 1] : segment.limit();
+            return CityFile.read(segment.slice(offsetIn[k], end - offsetIn[k]));
+        }
+
+        /**
+         * Closes the file; the mapped segments are released with the reader, like any mapped buffer.
+         */
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
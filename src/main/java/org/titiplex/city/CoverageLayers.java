@@ -0,0 +1,152 @@
+package org.titiplex.city;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Service coverage maintained by a {@link City}: for each covering kind, the number of buildings whose
+ * radius rectangle contains each cell.
+ * <p>
+ * A building of footprint [x0, x1] x [y0, y1] covers [x0 - radius_x, x1 + radius_x] x [y0 - radius_y, y1 + radius_y],
+ * which is the union of the radius rectangles of its cells. Stamps go into a 2D difference array in O(1)
+ * and are folded into the counts on the next read; small stamps on a clean layer are written directly.
+ */
+final class CoverageLayers {
+
+    private final int width, height;
+    // counts and pending difference stamps by Kind ordinal, null for kinds that do not cover
+    private final IntPages[] counts;
+    private final IntPages[] diff;
+    private final boolean[] dirty;
+
+    CoverageLayers(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int kinds = Building.Kind.values().length;
+        this.counts = new IntPages[kinds];
+        this.diff = new IntPages[kinds];
+        this.dirty = new boolean[kinds];
+        for (Building.Kind k : Building.Kind.values()) {
+            if (coveringKind(k)) {
+                counts[k.ordinal()] = new IntPages(width * height);
+                diff[k.ordinal()] = new IntPages((width + 1) * (height + 1));
+            }
+        }
+    }
+
+    /**
+     * A copy sharing the layers of the other one, see {@link IntPages#share()}.
+     */
+    CoverageLayers(CoverageLayers other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.counts = new IntPages[other.counts.length];
+        this.diff = new IntPages[other.diff.length];
+        this.dirty = other.dirty.clone();
+        for (int k = 0; k < counts.length; k++) {
+            if (other.counts[k] != null) {
+                counts[k] = other.counts[k].share();
+                diff[k] = other.diff[k].share();
+            }
+        }
+    }
+
+    /**
+     * Reads the layers written by {@link #write}.
+     */
+    CoverageLayers(int width, int height, DataInput in) throws IOException {
+        this.width = width;
+        this.height = height;
+        int kinds = Building.Kind.values().length;
+        this.counts = new IntPages[kinds];
+        this.diff = new IntPages[kinds];
+        this.dirty = new boolean[kinds];
+        for (Building.Kind k : Building.Kind.values()) {
+            if (!coveringKind(k)) continue;
+            counts[k.ordinal()] = new IntPages(in);
+            diff[k.ordinal()] = new IntPages(in);
+            dirty[k.ordinal()] = in.readBoolean();
+        }
+    }
+
+    /**
+     * Writes the counts and the pending stamps of each covering kind, as they are.
+     */
+    void write(DataOutput out) throws IOException {
+        for (int k = 0; k < counts.length; k++) {
+            if (counts[k] == null) continue;
+            counts[k].write(out);
+            diff[k].write(out);
+            out.writeBoolean(dirty[k]);
+        }
+    }
+
+    static boolean coveringKind(Building.Kind k) {
+        return k == Building.Kind.FIRE || k == Building.Kind.POLICE || k == Building.Kind.HEALTH || k == Building.Kind.TRANSIT;
+    }
+
+    /**
+     * Types whose radius counts as coverage; among transit buildings only railway stations cover.
+     */
+    static boolean coveringType(Building.Type t) {
+        return t == Building.Type.FIRE_STATION || t == Building.Type.POLICE_STATION
+                || t == Building.Type.HEALTH_CLINIC || t == Building.Type.RAILWAY_STATION;
+    }
+
+    /**
+     * Adds (sign = 1) or removes (sign = -1) the coverage of a building.
+     */
+    void stamp(Building b, int sign) {
+        Building.Characteristics chars = b.chars();
+        if (!coveringType(chars.type) || !b.isPlaced()) return;
+        int x0 = Math.max(0, b.x0() - chars.radius_x), x1 = Math.min(width - 1, b.x1() - 1 + chars.radius_x);
+        int y0 = Math.max(0, b.y0() - chars.radius_y), y1 = Math.min(height - 1, b.y1() - 1 + chars.radius_y);
+        int k = chars.type.getKind().ordinal();
+
+        int area = (x1 - x0 + 1) * (y1 - y0 + 1);
+        if (!dirty[k] && area * 8 <= width * height) {
+            IntPages count = counts[k];
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    count.add(y * width + x, sign);
+                }
+            }
+            return;
+        }
+        IntPages d = diff[k];
+        int w = width + 1;
+        d.add(y0 * w + x0, sign);
+        d.add(y0 * w + x1 + 1, -sign);
+        d.add((y1 + 1) * w + x0, -sign);
+        d.add((y1 + 1) * w + x1 + 1, sign);
+        dirty[k] = true;
+    }
+
+    /**
+     * Number of buildings of the kind covering the cell.
+     */
+    int count(Building.Kind kind, int index) {
+        int k = kind.ordinal();
+        if (counts[k] == null) return 0;
+        if (dirty[k]) flush(k);
+        return counts[k].get(index);
+    }
+
+    private void flush(int k) {
+        IntPages d = diff[k], count = counts[k];
+        int w = width + 1;
+        // running 2D prefix sum of the stamps, row by row
+        int[] above = new int[width];
+        for (int y = 0; y < height; y++) {
+            int row = 0;
+            for (int x = 0; x < width; x++) {
+                row += d.get(y * w + x);
+                above[x] += row;
+                if (above[x] != 0) count.add(y * width + x, above[x]);
+            }
+        }
+        d.fill(0);
+        dirty[k] = false;
+    }
+}
@@ -0,0 +1,150 @@
+package org.titiplex.city;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Distance fields maintained by a {@link City}: for parks, schools and railway stations, the manhattan
+ * distance from each cell to the nearest cell of a building of that type.
+ * <p>
+ * A placement lowers the field in place with the distance to the new footprint; a removal marks the field
+ * dirty and the next read rebuilds it with a two-pass L1 distance transform over the grid.
+ */
+final class DistanceLayers {
+
+    static final int NONE = Integer.MAX_VALUE;
+    // larger than any distance on the map, small enough not to overflow when incremented
+    private static final int FAR = Integer.MAX_VALUE / 2;
+
+    private final int width, height;
+    // fields and facility cell counts by Type ordinal, null for types without a field
+    private final IntPages[] dist;
+    private final int[] cellCount;
+    private final boolean[] dirty;
+    // flat copy of a field during a rebuild, allocated on the first one
+    private int[] scratch;
+
+    DistanceLayers(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int types = Building.Type.values().length;
+        this.dist = new IntPages[types];
+        this.cellCount = new int[types];
+        this.dirty = new boolean[types];
+        for (Building.Type t : Building.Type.values()) {
+            if (tracked(t)) dist[t.ordinal()] = new IntPages(width * height, FAR);
+        }
+    }
+
+    /**
+     * A copy sharing the fields of the other one, see {@link IntPages#share()}.
+     */
+    DistanceLayers(DistanceLayers other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.dist = new IntPages[other.dist.length];
+        this.cellCount = other.cellCount.clone();
+        this.dirty = other.dirty.clone();
+        for (int t = 0; t < dist.length; t++) {
+            if (other.dist[t] != null) dist[t] = other.dist[t].share();
+        }
+    }
+
+    /**
+     * Reads the fields written by {@link #write}.
+     */
+    DistanceLayers(int width, int height, DataInput in) throws IOException {
+        this.width = width;
+        this.height = height;
+        int types = Building.Type.values().length;
+        this.dist = new IntPages[types];
+        this.cellCount = new int[types];
+        this.dirty = new boolean[types];
+        for (Building.Type t : Building.Type.values()) {
+            if (!tracked(t)) continue;
+            dist[t.ordinal()] = new IntPages(in);
+            cellCount[t.ordinal()] = in.readInt();
+            dirty[t.ordinal()] = in.readBoolean();
+        }
+    }
+
+    /**
+     * Writes each field as it is, stale or not, with its facility cell count.
+     */
+    void write(DataOutput out) throws IOException {
+        for (int t = 0; t < dist.length; t++) {
+            if (dist[t] == null) continue;
+            dist[t].write(out);
+            out.writeInt(cellCount[t]);
+            out.writeBoolean(dirty[t]);
+        }
+    }
+
+    static boolean tracked(Building.Type t) {
+        return t == Building.Type.PARK || t == Building.Type.SCHOOL || t == Building.Type.RAILWAY_STATION;
+    }
+
+    void placed(Building b) {
+        Building.Type type = b.chars().type;
+        if (!tracked(type) || !b.isPlaced()) return;
+        int t = type.ordinal();
+        cellCount[t] += b.cellCount();
+        if (dirty[t]) return;
+
+        int xmin = b.x0(), xmax = b.x1() - 1, ymin = b.y0(), ymax = b.y1() - 1;
+        IntPages d = dist[t];
+        for (int y = 0; y < height; y++) {
+            int dy = y < ymin ? ymin - y : Math.max(0, y - ymax);
+            for (int x = 0; x < width; x++) {
+                int dx = x < xmin ? xmin - x : Math.max(0, x - xmax);
+                int i = y * width + x;
+                if (dx + dy < d.get(i)) d.set(i, dx + dy);
+            }
+        }
+    }
+
+    void removed(Building b) {
+        Building.Type type = b.chars().type;
+        if (!tracked(type) || !b.isPlaced()) return;
+        int t = type.ordinal();
+        cellCount[t] -= b.cellCount();
+        dirty[t] = true;
+    }
+
+    /**
+     * Distance from the cell to the nearest cell of the type, {@link #NONE} when there is none.
+     */
+    int distance(City city, Building.Type type, int index) {
+        int t = type.ordinal();
+        if (dist[t] == null || cellCount[t] == 0) return NONE;
+        if (dirty[t]) rebuild(city, type);
+        return dist[t].get(index);
+    }
+
+    private void rebuild(City city, Building.Type type) {
+        // the transform runs on a flat scratch array, then replaces the pages of the field
+        if (scratch == null) scratch = new int[width * height];
+        int[] d = scratch;
+        for (int i = 0; i < d.length; i++) {
+            d[i] = city.typeAt(i) == type ? 0 : FAR;
+        }
+        // forward pass from the top left, backward pass from the bottom right
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = y * width + x;
+                if (x > 0 && d[i - 1] + 1 < d[i]) d[i] = d[i - 1] + 1;
+                if (y > 0 && d[i - width] + 1 < d[i]) d[i] = d[i - width] + 1;
+            }
+        }
+        for (int y = height - 1; y >= 0; y--) {
+            for (int x = width - 1; x >= 0; x--) {
+                int i = y * width + x;
+                if (x < width - 1 && d[i + 1] + 1 < d[i]) d[i] = d[i + 1] + 1;
+                if (y < height - 1 && d[i + width] + 1 < d[i]) d[i] = d[i + width] + 1;
+            }
+        }
+        dist[type.ordinal()].assign(d);
+        dirty[type.ordinal()] = false;
+    }
+}
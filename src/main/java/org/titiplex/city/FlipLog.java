@@ -0,0 +1,42 @@
+package org.titiplex.city;
+
+import java.util.Arrays;
+
+/**
+ * Cells whose status in a network changed while the city journals its mutations, each with its new status.
+ * A cell appears once per change, so its first entry also tells its status before the mutations.
+ */
+final class FlipLog {
+
+    private int[] flips = new int[0];
+    private int count;
+    private boolean logging;
+
+    void start() {
+        count = 0;
+        logging = true;
+    }
+
+    void stop() {
+        count = 0;
+        logging = false;
+    }
+
+    void add(int cell, boolean status) {
+        if (!logging) return;
+        if (count == flips.length) flips = Arrays.copyOf(flips, Math.max(16, count * 2));
+        flips[count++] = cell << 1 | (status ? 1 : 0);
+    }
+
+    int count() {
+        return count;
+    }
+
+    int cell(int k) {
+        return flips[k] >>> 1;
+    }
+
+    boolean status(int k) {
+        return (flips[k] & 1) != 0;
+    }
+}
@@ -0,0 +1,167 @@
+package org.titiplex.city;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * An int array cut into fixed-size pages, shared copy-on-write between snapshots.
+ * <p>
+ * {@link #share()} returns a second array over the same pages and marks every page shared on both sides;
+ * the first write to a shared page copies that page only. Sharing costs one reference per page, and an
+ * array that is never written after being shared never copies anything.
+ * <p>
+ * Not thread-safe: an array and its snapshots may live on different threads, but {@link #share()} must run
+ * on the thread that owns the array being shared.
+ */
+final class IntPages {
+
+    static final int SHIFT = 8, PAGE = 1 << SHIFT, MASK = PAGE - 1;
+
+    private int[][] pages;
+    // pages that another array may reference, copied before their first write
+    private boolean[] shared;
+    private int length;
+    // value of the elements never written
+    private final int initial;
+
+    IntPages(int length) {
+        this(length, 0);
+    }
+
+    IntPages(int length, int initial) {
+        this.initial = initial;
+        this.pages = new int[0][];
+        this.shared = new boolean[0];
+        grow(length);
+    }
+
+    /**
+     * Reads an array written by {@link #write}.
+     */
+    IntPages(DataInput in) throws IOException {
+        this(in.readInt(), in.readInt());
+        for (int p = 0; p << SHIFT < length; p++) {
+            int[] page = pages[p];
+            for (int i = 0, n = Math.min(PAGE, length - (p << SHIFT)); i < n; i++) page[i] = in.readInt();
+        }
+    }
+
+    private IntPages(IntPages other) {
+        this.pages = other.pages.clone();
+        this.shared = new boolean[pages.length];
+        Arrays.fill(shared, true);
+        this.length = other.length;
+        this.initial = other.initial;
+    }
+
+    /**
+     * A copy of the array sharing its pages, in O(pages).
+     */
+    IntPages share() {
+        Arrays.fill(shared, true);
+        return new IntPages(this);
+    }
+
+    /**
+     * Writes the length, the initial value and the elements; pages are not shared with the read copy.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(length);
+        out.writeInt(initial);
+        for (int p = 0; p << SHIFT < length; p++) {
+            int[] page = pages[p];
+            for (int i = 0, n = Math.min(PAGE, length - (p << SHIFT)); i < n; i++) out.writeInt(page[i]);
+        }
+    }
+
+    int length() {
+        return length;
+    }
+
+    int get(int i) {
+        return pages[i >>> SHIFT][i & MASK];
+    }
+
+    void set(int i, int value) {
+        int p = i >>> SHIFT;
+        int[] page = shared[p] ? copy(p) : pages[p];
+        page[i & MASK] = value;
+    }
+
+    void add(int i, int delta) {
+        int p = i >>> SHIFT;
+        int[] page = shared[p] ? copy(p) : pages[p];
+        page[i & MASK] += delta;
+    }
+
+    /**
+     * Number of elements of [from, to) equal to the value, read page by page.
+     */
+    int count(int from, int to, int value) {
+        int n = 0;
+        while (from < to) {
+            int[] page = pages[from >>> SHIFT];
+            int end = Math.min(to, (from | MASK) + 1);
+            for (int i = from & MASK, last = i + end - from; i < last; i++) {
+                if (page[i] == value) n++;
+            }
+            from = end;
+        }
+        return n;
+    }
+
+    /**
+     * Sets every element; the pages are replaced rather than copied.
+     */
+    void fill(int value) {
+        for (int p = 0; p < pages.length; p++) {
+            int[] page = new int[PAGE];
+            if (value != 0) Arrays.fill(page, value);
+            pages[p] = page;
+            shared[p] = false;
+        }
+    }
+
+    /**
+     * Overwrites the first values.length elements, page by page.
+     */
+    void assign(int[] values) {
+        for (int p = 0; p << SHIFT < values.length; p++) {
+            int from = p << SHIFT;
+            int[] page = shared[p] ? copy(p) : pages[p];
+            System.arraycopy(values, from, page, 0, Math.min(PAGE, values.length - from));
+        }
+    }
+
+    /**
+     * Extends the array to at least the given length; new elements hold the initial value.
+     */
+    void grow(int length) {
+        if (length <= this.length) return;
+        // the tail of the last page may have been filled with another value
+        for (int i = this.length; i < Math.min(length, pages.length << SHIFT); i++) set(i, initial);
+        int n = (length + MASK) >>> SHIFT;
+        if (n > pages.length) {
+            int old = pages.length;
+            pages = Arrays.copyOf(pages, n);
+            shared = Arrays.copyOf(shared, n);
+            for (int p = old; p < n; p++) pages[p] = newPage();
+        }
+        this.length = length;
+    }
+
+    private int[] newPage() {
+        int[] page = new int[PAGE];
+        if (initial != 0) Arrays.fill(page, initial);
+        return page;
+    }
+
+    private int[] copy(int p) {
+        int[] page = pages[p].clone();
+        pages[p] = page;
+        shared[p] = false;
+        return page;
+    }
+}
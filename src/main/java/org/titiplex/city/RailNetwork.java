@@ -0,0 +1,230 @@
+package org.titiplex.city;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Railway components maintained by a {@link City}: rails, stations and crossings joined in a disjoint-set
+ * forest, with per-component station and rail counts, and the two counters of the rail penalty.
+ * <p>
+ * A new railway cell is united with its railway neighbours. Each component also threads its cells in a
+ * circular list, so removing a cell only rebuilds the component it belonged to.
+ */
+final class RailNetwork {
+
+    private static final int NONE = -1;
+
+    private final int width, height;
+    // disjoint-set forest over railway cells, NONE for other cells; size, counts and list are kept at roots
+    private final IntPages parent, size, next, stations, rails;
+    // 1 for station cells without a rail or crossing next to them
+    private final IntPages bare;
+    private int orphanRails, bareStations;
+    // scratch list of the cells of a rebuilt component, allocated on the first removal
+    private int[] members;
+    private boolean rebuilding;
+    final FlipLog flips = new FlipLog();
+
+    RailNetwork(int width, int height) {
+        this.width = width;
+        this.height = height;
+        int n = width * height;
+        this.parent = new IntPages(n, NONE);
+        this.size = new IntPages(n);
+        this.next = new IntPages(n);
+        this.stations = new IntPages(n);
+        this.rails = new IntPages(n);
+        this.bare = new IntPages(n);
+    }
+
+    /**
+     * A copy sharing the forest of the other network, see {@link IntPages#share()}.
+     */
+    RailNetwork(RailNetwork other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.parent = other.parent.share();
+        this.size = other.size.share();
+        this.next = other.next.share();
+        this.stations = other.stations.share();
+        this.rails = other.rails.share();
+        this.bare = other.bare.share();
+        this.orphanRails = other.orphanRails;
+        this.bareStations = other.bareStations;
+    }
+
+    /**
+     * Reads a forest written by {@link #write}.
+     */
+    RailNetwork(int width, int height, DataInput in) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.parent = new IntPages(in);
+        this.size = new IntPages(in);
+        this.next = new IntPages(in);
+        this.stations = new IntPages(in);
+        this.rails = new IntPages(in);
+        this.bare = new IntPages(in);
+        this.orphanRails = in.readInt();
+        this.bareStations = in.readInt();
+    }
+
+    /**
+     * Writes the forest and the cell lists as they are, see {@link RoadNetwork#write}.
+     */
+    void write(DataOutput out) throws IOException {
+        parent.write(out);
+        size.write(out);
+        next.write(out);
+        stations.write(out);
+        rails.write(out);
+        bare.write(out);
+        out.writeInt(orphanRails);
+        out.writeInt(bareStations);
+    }
+
+    static boolean isRailway(Building.Type t) {
+        return t == Building.Type.RAIL || t == Building.Type.RAILWAY_STATION || t == Building.Type.CROSSING;
+    }
+
+    private static boolean isTrack(Building.Type t) {
+        return t == Building.Type.RAIL || t == Building.Type.CROSSING;
+    }
+
+    /**
+     * Whether the cell is a railway cell in a component holding a station.
+     */
+    boolean linkedToStation(int index) {
+        return parent.get(index) != NONE && stations.get(find(index)) > 0;
+    }
+
+    int orphanRails() {
+        return orphanRails;
+    }
+
+    int bareStations() {
+        return bareStations;
+    }
+
+    /**
+     * Updates the components and counters after a cell of the city changed type.
+     */
+    void cellChanged(City city, int index, Building.Type before, Building.Type after) {
+        if (before == after) return;
+        if (isRailway(before)) remove(city, index);
+        if (isRailway(after)) {
+            add(index, after);
+            if (after == Building.Type.RAILWAY_STATION) flips.add(index, true);
+        }
+        if (isTrack(before) != isTrack(after) || before == Building.Type.RAILWAY_STATION
+                || after == Building.Type.RAILWAY_STATION) {
+            updateBare(city, index);
+            int x = index % width, y = index / width;
+            if (x + 1 < width) updateBare(city, index + 1);
+            if (x - 1 >= 0) updateBare(city, index - 1);
+            if (y + 1 < height) updateBare(city, index + width);
+            if (y - 1 >= 0) updateBare(city, index - width);
+        }
+    }
+
+    private void add(int c, Building.Type t) {
+        parent.set(c, c);
+        size.set(c, 1);
+        next.set(c, c);
+        stations.set(c, t == Building.Type.RAILWAY_STATION ? 1 : 0);
+        rails.set(c, t == Building.Type.RAIL ? 1 : 0);
+        orphanRails += orphans(c);
+        int x = c % width, y = c / width;
+        if (x + 1 < width && parent.get(c + 1) != NONE) union(c, c + 1);
+        if (x - 1 >= 0 && parent.get(c - 1) != NONE) union(c, c - 1);
+        if (y + 1 < height && parent.get(c + width) != NONE) union(c, c + width);
+        if (y - 1 >= 0 && parent.get(c - width) != NONE) union(c, c - width);
+    }
+
+    private void remove(City city, int c) {
+        if (members == null) members = new int[width * height];
+        int r = find(c);
+        boolean wasLinked = stations.get(r) > 0;
+        int count = 0, m = r;
+        do {
+            members[count++] = m;
+            m = next.get(m);
+        } while (m != r);
+        orphanRails -= orphans(r);
+        for (int k = 0; k < count; k++) parent.set(members[k], NONE);
+
+        // rebuild the component without the removed cell, then log the cells it left without a station
+        rebuilding = true;
+        for (int k = 0; k < count; k++) {
+            int cell = members[k];
+            if (cell != c) add(cell, city.typeAt(cell));
+        }
+        rebuilding = false;
+        if (wasLinked) {
+            for (int k = 0; k < count; k++) {
+                if (!linkedToStation(members[k])) flips.add(members[k], false);
+            }
+        }
+    }
+
+    private void union(int a, int b) {
+        int ra = find(a), rb = find(b);
+        if (ra == rb) return;
+        orphanRails -= orphans(ra) + orphans(rb);
+        // the cells of a component without station become linked when it meets one that has some
+        if (stations.get(ra) == 0 && stations.get(rb) > 0) flipAll(ra);
+        else if (stations.get(rb) == 0 && stations.get(ra) > 0) flipAll(rb);
+        if (size.get(ra) < size.get(rb)) {
+            int t = ra;
+            ra = rb;
+            rb = t;
+        }
+        parent.set(rb, ra);
+        size.add(ra, size.get(rb));
+        stations.add(ra, stations.get(rb));
+        rails.add(ra, rails.get(rb));
+        int t = next.get(ra);
+        next.set(ra, next.get(rb));
+        next.set(rb, t);
+        orphanRails += orphans(ra);
+    }
+
+    private void flipAll(int root) {
+        if (rebuilding) return;
+        int m = root;
+        do {
+            flips.add(m, true);
+            m = next.get(m);
+        } while (m != root);
+    }
+
+    private int orphans(int root) {
+        return stations.get(root) == 0 ? rails.get(root) : 0;
+    }
+
+    private int find(int c) {
+        for (int p = parent.get(c); p != c; p = parent.get(c)) {
+            int gp = parent.get(p);
+            // halving writes only when it shortens the path, so reads of a snapshot rarely copy a page
+            if (gp != p) parent.set(c, gp);
+            c = gp;
+        }
+        return c;
+    }
+
+    private void updateBare(City city, int c) {
+        boolean b = false;
+        if (city.typeAt(c) == Building.Type.RAILWAY_STATION) {
+            int x = c % width, y = c / width;
+            b = !((x + 1 < width && isTrack(city.typeAt(c + 1)))
+                    || (x - 1 >= 0 && isTrack(city.typeAt(c - 1)))
+                    || (y + 1 < height && isTrack(city.typeAt(c + width)))
+                    || (y - 1 >= 0 && isTrack(city.typeAt(c - width))));
+        }
+        if (b != (bare.get(c) != 0)) {
+            bare.set(c, b ? 1 : 0);
+            bareStations += b ? 1 : -1;
+        }
+    }
+}
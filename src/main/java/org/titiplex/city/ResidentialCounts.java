@@ -0,0 +1,69 @@
+package org.titiplex.city;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Residential cells of a {@link City} in a 2D Fenwick tree, so that the number of residences in any
+ * rectangle is read in O(log width * log height) and a cell change is applied in the same time.
+ * <p>
+ * The tree is 1-based: node (i, j) sums the cells [i - lowbit(i), i) x [j - lowbit(j), j). It lives in
+ * {@link IntPages} and is shared with snapshots like the rest of the city.
+ */
+final class ResidentialCounts {
+
+    private final int width, height;
+    private final IntPages tree;
+
+    ResidentialCounts(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.tree = new IntPages((width + 1) * (height + 1));
+    }
+
+    ResidentialCounts(ResidentialCounts other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.tree = other.tree.share();
+    }
+
+    /**
+     * Reads a tree written by {@link #write}.
+     */
+    ResidentialCounts(int width, int height, DataInput in) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.tree = new IntPages(in);
+    }
+
+    void write(DataOutput out) throws IOException {
+        tree.write(out);
+    }
+
+    void add(int x, int y, int delta) {
+        for (int j = y + 1; j <= height; j += j & -j) {
+            for (int i = x + 1; i <= width; i += i & -i) {
+                tree.add(j * (width + 1) + i, delta);
+            }
+        }
+    }
+
+    /**
+     * Number of residential cells in [x0, x1) x [y0, y1), bounds clipped by the caller.
+     */
+    int count(int x0, int y0, int x1, int y1) {
+        return prefix(x1, y1) - prefix(x0, y1) - prefix(x1, y0) + prefix(x0, y0);
+    }
+
+    // residential cells in [0, x) x [0, y)
+    private int prefix(int x, int y) {
+        int s = 0;
+        for (int j = y; j > 0; j -= j & -j) {
+            for (int i = x; i > 0; i -= i & -i) {
+                s += tree.get(j * (width + 1) + i);
+            }
+        }
+        return s;
+    }
+}
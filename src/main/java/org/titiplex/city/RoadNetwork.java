@@ -0,0 +1,156 @@
+package org.titiplex.city;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Road connectivity maintained by a {@link City}: the cells linked to the start through roads and crossings,
+ * kept as a spanning tree rooted at the start. The start itself is always connected, whatever it holds.
+ * <p>
+ * A new road cell next to the tree is attached to it, along with the roads it links. A removed road cell
+ * detaches its subtree only, whose cells are then reattached from any other connected neighbour.
+ */
+final class RoadNetwork {
+
+    private static final int DETACHED = -1;
+
+    private final int width, height, start;
+    // neighbour towards the start for connected cells, DETACHED otherwise
+    private final IntPages parent;
+    private int connectedCount;
+    // scratch buffers for the floods and the subtree walks, allocated on the first change
+    private int[] queue, subtree;
+    final FlipLog flips = new FlipLog();
+
+    RoadNetwork(int width, int height, int start) {
+        this.width = width;
+        this.height = height;
+        this.start = start;
+        this.parent = new IntPages(width * height, DETACHED);
+        parent.set(start, start);
+        this.connectedCount = 1;
+    }
+
+    /**
+     * A copy sharing the tree of the other network, see {@link IntPages#share()}.
+     */
+    RoadNetwork(RoadNetwork other) {
+        this.width = other.width;
+        this.height = other.height;
+        this.start = other.start;
+        this.parent = other.parent.share();
+        this.connectedCount = other.connectedCount;
+    }
+
+    /**
+     * Reads a tree written by {@link #write}.
+     */
+    RoadNetwork(int width, int height, int start, DataInput in) throws IOException {
+        this.width = width;
+        this.height = height;
+        this.start = start;
+        this.parent = new IntPages(in);
+        this.connectedCount = in.readInt();
+    }
+
+    /**
+     * Writes the tree as it is: its shape decides the order in which later changes flip cells.
+     */
+    void write(DataOutput out) throws IOException {
+        parent.write(out);
+        out.writeInt(connectedCount);
+    }
+
+    static boolean isRoad(Building.Type t) {
+        return t == Building.Type.ROAD || t == Building.Type.CROSSING;
+    }
+
+    boolean connected(int index) {
+        return parent.get(index) != DETACHED;
+    }
+
+    int connectedCount() {
+        return connectedCount;
+    }
+
+    /**
+     * Updates the tree after a cell of the city changed from or to a road.
+     */
+    void cellChanged(City city, int index, Building.Type before, Building.Type after) {
+        boolean was = isRoad(before), is = isRoad(after);
+        if (was == is || index == start) return;
+        if (queue == null) {
+            queue = new int[width * height];
+            subtree = new int[width * height];
+        }
+        if (is) {
+            int p = connectedNeighbour(index);
+            if (p != DETACHED) flood(city, index, p);
+        } else if (parent.get(index) != DETACHED) {
+            detach(city, index);
+        }
+    }
+
+    private void detach(City city, int root) {
+        // the subtree hangs from the removed cell: its children are the neighbours pointing at it
+        int size = 0, top = 0;
+        queue[top++] = root;
+        while (top > 0) {
+            int c = queue[--top];
+            subtree[size++] = c;
+            int x = c % width, y = c / width;
+            if (x + 1 < width && parent.get(c + 1) == c) queue[top++] = c + 1;
+            if (x - 1 >= 0 && parent.get(c - 1) == c) queue[top++] = c - 1;
+            if (y + 1 < height && parent.get(c + width) == c) queue[top++] = c + width;
+            if (y - 1 >= 0 && parent.get(c - width) == c) queue[top++] = c - width;
+        }
+        for (int k = 0; k < size; k++) setParent(subtree[k], DETACHED);
+
+        // reattach what is still reachable through another path
+        for (int k = 1; k < size; k++) {
+            int c = subtree[k];
+            if (parent.get(c) != DETACHED) continue;
+            int p = connectedNeighbour(c);
+            if (p != DETACHED) flood(city, c, p);
+        }
+    }
+
+    private void flood(City city, int seed, int seedParent) {
+        int head = 0, tail = 0;
+        setParent(seed, seedParent);
+        queue[tail++] = seed;
+        while (head < tail) {
+            int c = queue[head++];
+            int x = c % width, y = c / width;
+            if (x + 1 < width) tail = attach(city, c + 1, c, tail);
+            if (x - 1 >= 0) tail = attach(city, c - 1, c, tail);
+            if (y + 1 < height) tail = attach(city, c + width, c, tail);
+            if (y - 1 >= 0) tail = attach(city, c - width, c, tail);
+        }
+    }
+
+    private int attach(City city, int n, int from, int tail) {
+        if (parent.get(n) != DETACHED || !isRoad(city.typeAt(n))) return tail;
+        setParent(n, from);
+        queue[tail++] = n;
+        return tail;
+    }
+
+    private int connectedNeighbour(int c) {
+        int x = c % width, y = c / width;
+        if (x + 1 < width && parent.get(c + 1) != DETACHED) return c + 1;
+        if (x - 1 >= 0 && parent.get(c - 1) != DETACHED) return c - 1;
+        if (y + 1 < height && parent.get(c + width) != DETACHED) return c + width;
+        if (y - 1 >= 0 && parent.get(c - width) != DETACHED) return c - width;
+        return DETACHED;
+    }
+
+    private void setParent(int c, int p) {
+        boolean was = parent.get(c) != DETACHED, is = p != DETACHED;
+        parent.set(c, p);
+        if (was == is) return;
+        connectedCount += is ? 1 : -1;
+        flips.add(c, is);
+    }
+}
@@ -0,0 +1,169 @@
+package org.titiplex.city;
+
+import java.util.Arrays;
+
+/**
+ * Reach of the live services of a {@link City}, as a structure of arrays: the corner and the radii of every
+ * service, grouped by type in the order of {@link Building.Type#SERVICES} and, within a type, in the order of
+ * the {@link BuildingIndex} list of the type, so that a scan visits them in the same order as a walk of the
+ * index type by type.
+ * <p>
+ * A residential cell at (x, y) is in reach of a service when |x - x0| &lt;= radius_x and |y - y0| &lt;= radius_y,
+ * (x0, y0) being the corner of the service. {@link #inReach} runs that test over every service at once with
+ * the fastest {@link Kernel} available. There are tens of services, so updates shift the arrays rather than
+ * keep gaps between the types.
+ */
+final class ServiceBoxes {
+
+    /**
+     * The scan of {@link #inReach}: the ids of the boxes containing (x, y), in box order, go into {@code hits}.
+     *
+     * @return the number of hits
+     */
+    interface Kernel {
+        int inReach(int x, int y, int[] x0, int[] y0, int[] rx, int[] ry, int[] ids, int n, int[] hits);
+    }
+
+    static final Kernel SCALAR = (x, y, x0, y0, rx, ry, ids, n, hits) -> {
+        int found = 0;
+        for (int k = 0; k < n; k++) {
+            if (Math.abs(x - x0[k]) <= rx[k] && Math.abs(y - y0[k]) <= ry[k]) hits[found++] = ids[k];
+        }
+        return found;
+    };
+
+    /**
+     * The vector kernel when it was built, with the {@code vector} profile, and the {@code jdk.incubator.vector}
+     * module is in the boot layer ({@code --add-modules jdk.incubator.vector}); the scalar one otherwise.
+     */
+    static final Kernel KERNEL = loadKernel();
+
+    private static final int SERVICES = Building.Type.SERVICES.size();
+    // position in Building.Type.SERVICES by Type ordinal, -1 for the other types
+    private static final int[] SERVICE = new int[Building.Type.values().length];
+
+    static {
+        Arrays.fill(SERVICE, -1);
+        for (int s = 0; s < SERVICES; s++) SERVICE[Building.Type.SERVICES.get(s).ordinal()] = s;
+    }
+
+    // boxes of the type at position s take [end[s - 1], end[s]) of the arrays, end[SERVICES - 1] in all
+    private int[] x0 = new int[0], y0 = new int[0], rx = new int[0], ry = new int[0], ids = new int[0];
+    private final int[] end = new int[SERVICES];
+    // position of each id in the arrays
+    private int[] position = new int[0];
+
+    ServiceBoxes() {
+    }
+
+    /**
+     * A copy of the other boxes; there are few services, so the arrays are copied rather than shared.
+     */
+    ServiceBoxes(ServiceBoxes other) {
+        this.x0 = other.x0.clone();
+        this.y0 = other.y0.clone();
+        this.rx = other.rx.clone();
+        this.ry = other.ry.clone();
+        this.ids = other.ids.clone();
+        System.arraycopy(other.end, 0, end, 0, SERVICES);
+        this.position = other.position.clone();
+    }
+
+    /**
+     * Boxes of the services of the index, in its order.
+     */
+    ServiceBoxes(BuildingIndex byType, BuildingPages buildings) {
+        for (Building.Type t : Building.Type.SERVICES) {
+            for (int k = 0; k < byType.count(t); k++) {
+                int id = byType.id(t, k);
+                placed(id, buildings.get(id));
+            }
+        }
+    }
+
+    /**
+     * Mirrors {@link BuildingIndex#placed}: the box goes last among those of its type.
+     */
+    void placed(int id, Building b) {
+        int s = service(b.chars().type);
+        int n = size();
+        if (n == ids.length) {
+            int capacity = Math.max(16, 2 * n);
+            x0 = Arrays.copyOf(x0, capacity);
+            y0 = Arrays.copyOf(y0, capacity);
+            rx = Arrays.copyOf(rx, capacity);
+            ry = Arrays.copyOf(ry, capacity);
+            ids = Arrays.copyOf(ids, capacity);
+        }
+        if (id >= position.length) position = Arrays.copyOf(position, Math.max(id + 1, 2 * position.length));
+        int p = end[s];
+        shift(p, n, 1);
+        for (int t = s; t < SERVICES; t++) end[t]++;
+        x0[p] = b.x0();
+        y0[p] = b.y0();
+        rx[p] = b.chars().radius_x;
+        ry[p] = b.chars().radius_y;
+        ids[p] = id;
+        position[id] = p;
+    }
+
+    /**
+     * Mirrors {@link BuildingIndex#removed}: the last box of the type moves into the freed slot.
+     */
+    void removed(int id, Building b) {
+        int s = service(b.chars().type);
+        int last = end[s] - 1, p = position[id];
+        x0[p] = x0[last];
+        y0[p] = y0[last];
+        rx[p] = rx[last];
+        ry[p] = ry[last];
+        ids[p] = ids[last];
+        position[ids[p]] = p;
+        shift(last + 1, size(), -1);
+        for (int t = s; t < SERVICES; t++) end[t]--;
+    }
+
+    // moves the boxes [from, to) by the offset
+    private void shift(int from, int to, int offset) {
+        if (from >= to) return;
+        System.arraycopy(x0, from, x0, from + offset, to - from);
+        System.arraycopy(y0, from, y0, from + offset, to - from);
+        System.arraycopy(rx, from, rx, from + offset, to - from);
+        System.arraycopy(ry, from, ry, from + offset, to - from);
+        System.arraycopy(ids, from, ids, from + offset, to - from);
+        for (int k = from + offset; k < to + offset; k++) position[ids[k]] = k;
+    }
+
+    /**
+     * Ids of the services that reach the cell, type by type in the order of {@link Building.Type#SERVICES}.
+     *
+     * @param hits receives the ids, at least {@link #size()} long
+     * @return the number of ids
+     */
+    int inReach(int x, int y, int[] hits) {
+        return KERNEL.inReach(x, y, x0, y0, rx, ry, ids, size(), hits);
+    }
+
+    /**
+     * Number of services.
+     */
+    int size() {
+        return end[SERVICES - 1];
+    }
+
+    private static int service(Building.Type type) {
+        int s = SERVICE[type.ordinal()];
+        if (s < 0) throw new IllegalArgumentException("Not a service: " + type);
+        return s;
+    }
+
+    private static Kernel loadKernel() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) return SCALAR;
+        try {
+            // loaded by name, so that this class links without the module or the class
+            return (Kernel) Class.forName("org.titiplex.city.VectorKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return SCALAR;
+        }
+    }
+}
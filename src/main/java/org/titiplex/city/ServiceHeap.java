@@ -0,0 +1,128 @@
+package org.titiplex.city;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Service buildings of a {@link City} in an indexed binary min-heap keyed by the number of residential
+ * cells in their reach, see {@link City#residencesInReach(Building)}. The city inserts and removes services
+ * as they are placed and removed, and adjusts their keys as residential cells appear and disappear, so the
+ * least useful service is always at the top.
+ * <p>
+ * Heap slots, the slot of each id and the keys live in {@link IntPages} and are shared with snapshots.
+ */
+final class ServiceHeap {
+
+    // building ids in heap order, size entries used
+    private final IntPages heap;
+    // slot of each id in the heap and its key, by id
+    private final IntPages slot, key;
+    private int size;
+
+    ServiceHeap() {
+        this.heap = new IntPages(0);
+        this.slot = new IntPages(0);
+        this.key = new IntPages(0);
+    }
+
+    ServiceHeap(ServiceHeap other) {
+        this.heap = other.heap.share();
+        this.slot = other.slot.share();
+        this.key = other.key.share();
+        this.size = other.size;
+    }
+
+    /**
+     * Reads a heap written by {@link #write}.
+     */
+    ServiceHeap(DataInput in) throws IOException {
+        this.heap = new IntPages(in);
+        this.slot = new IntPages(in);
+        this.key = new IntPages(in);
+        this.size = in.readInt();
+    }
+
+    /**
+     * Writes the heap in its current layout, which decides the top among services of equal keys.
+     */
+    void write(DataOutput out) throws IOException {
+        heap.write(out);
+        slot.write(out);
+        key.write(out);
+        out.writeInt(size);
+    }
+
+    static boolean isService(Building.Type t) {
+        for (Building.Type s : Building.Type.SERVICES) {
+            if (s == t) return true;
+        }
+        return false;
+    }
+
+    void insert(int id, int k) {
+        heap.grow(size + 1);
+        slot.grow(id + 1);
+        key.grow(id + 1);
+        key.set(id, k);
+        place(size++, id);
+        up(size - 1);
+    }
+
+    void remove(int id) {
+        int s = slot.get(id);
+        int last = heap.get(--size);
+        if (s == size) return;
+        place(s, last);
+        up(s);
+        down(slot.get(last));
+    }
+
+    void adjust(int id, int delta) {
+        key.add(id, delta);
+        int s = slot.get(id);
+        if (delta < 0) up(s);
+        else down(s);
+    }
+
+    /**
+     * Id of the service with the smallest key, -1 when there is none.
+     */
+    int top() {
+        return size == 0 ? -1 : heap.get(0);
+    }
+
+    int key(int id) {
+        return key.get(id);
+    }
+
+    private void up(int s) {
+        int id = heap.get(s), k = key.get(id);
+        while (s > 0) {
+            int p = (s - 1) >>> 1, pid = heap.get(p);
+            if (key.get(pid) <= k) break;
+            place(s, pid);
+            s = p;
+        }
+        place(s, id);
+    }
+
+    private void down(int s) {
+        int id = heap.get(s), k = key.get(id);
+        while (true) {
+            int c = 2 * s + 1;
+            if (c >= size) break;
+            if (c + 1 < size && key.get(heap.get(c + 1)) < key.get(heap.get(c))) c++;
+            int cid = heap.get(c);
+            if (key.get(cid) >= k) break;
+            place(s, cid);
+            s = c;
+        }
+        place(s, id);
+    }
+
+    private void place(int s, int id) {
+        heap.set(s, id);
+        slot.set(id, s);
+    }
+}
@@ -0,0 +1,98 @@
+package org.titiplex.optimizer;
+
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+/**
+ * Runs many optimizations in one JVM. The optimizations run on a pool bounded by the number of cores.
+ * Each job is followed by a virtual thread that hands it to the pool, waits for it and publishes its
+ * outcome, so completed jobs stream back in the order they finish.
+ * <p>
+ * Jobs with several replicas also run their own tempering pool, see {@link Optimizer.Config#replicas()}.
+ */
+public final class BatchOptimizer implements AutoCloseable {
+
+    /**
+     * Outcome of the job at {@code index} in the submitted list: its result, or the error that stopped it.
+     */
+    public record Completed(int index, Optimizer.Config config, Optimizer.Result result, Throwable error) {
+
+        public boolean ok() {
+            return error == null;
+        }
+    }
+
+    private final ExecutorService cpu;
+    private final ExecutorService orchestrator;
+
+    public BatchOptimizer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism number of jobs optimized at the same time
+     */
+    public BatchOptimizer(int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("Invalid parallelism");
+        AtomicInteger workers = new AtomicInteger();
+        this.cpu = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "batch-optimizer-" + workers.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.orchestrator = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    /**
+     * Starts every job and returns their outcomes as they complete. The stream has one element per job
+     * and blocks until the next one completes.
+     */
+    public Stream<Completed> run(List<Optimizer.Config> jobs) {
+        BlockingQueue<Completed> completed = new LinkedBlockingQueue<>();
+        for (int i = 0; i < jobs.size(); i++) {
+            int index = i;
+            Optimizer.Config config = jobs.get(i);
+            orchestrator.execute(() -> completed.add(runJob(index, config)));
+        }
+        return Stream.generate(() -> take(completed)).limit(jobs.size());
+    }
+
+    private Completed runJob(int index, Optimizer.Config config) {
+        try {
+            Optimizer.Result result = cpu.submit(() -> new Optimizer(config).optimize()).get();
+            return new Completed(index, config, result, null);
+        } catch (ExecutionException e) {
+            return new Completed(index, config, null, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Completed(index, config, null, e);
+        } catch (RuntimeException e) {
+            // rejected or cancelled once the batch is closed
+            return new Completed(index, config, null, e);
+        }
+    }
+
+    private static Completed take(BlockingQueue<Completed> completed) {
+        try {
+            return completed.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a job", e);
+        }
+    }
+
+    /**
+     * Stops the pools; unfinished jobs complete with an error.
+     */
+    @Override
+    public void close() {
+        cpu.shutdownNow();
+        orchestrator.shutdownNow();
+    }
+}
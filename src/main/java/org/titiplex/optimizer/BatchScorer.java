@@ -0,0 +1,94 @@
+package org.titiplex.optimizer;
+
+import org.titiplex.city.City;
+import org.titiplex.city.CityFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Scores the cities stored in a {@link CityFile}, in parallel. The file is mapped, not loaded: each worker
+ * decodes one record at a time, scores it with {@link GameOptimizer#score(City)} and drops it, so the heap
+ * holds one city per worker whatever the size of the file.
+ */
+public final class BatchScorer implements AutoCloseable {
+
+    private final int parallelism;
+    private final ExecutorService cpu;
+
+    public BatchScorer() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param parallelism number of cities scored at the same time
+     */
+    public BatchScorer(int parallelism) {
+        if (parallelism <= 0) throw new IllegalArgumentException("Invalid parallelism");
+        this.parallelism = parallelism;
+        AtomicInteger workers = new AtomicInteger();
+        this.cpu = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "batch-scorer-" + workers.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Scores of the records of the file, in file order.
+     *
+     * @throws IOException when the file cannot be read or holds an invalid record
+     */
+    public double[] score(Path file) throws IOException {
+        try (CityFile.Reader reader = CityFile.open(file)) {
+            double[] scores = new double[reader.size()];
+            // workers take the next record until there is none left, so that slow records balance out
+            AtomicInteger next = new AtomicInteger();
+            List<Future<Void>> workers = new ArrayList<>(parallelism);
+            for (int w = 0; w < Math.min(parallelism, scores.length); w++) {
+                workers.add(cpu.submit(() -> {
+                    for (int k = next.getAndIncrement(); k < scores.length; k = next.getAndIncrement()) {
+                        try {
+                            scores[k] = GameOptimizer.score(reader.read(k));
+                        } catch (IllegalArgumentException e) {
+                            throw new IOException("Invalid record " + k + " of " + file, e);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            try {
+                for (Future<Void> w : workers) await(w);
+            } catch (IOException | RuntimeException e) {
+                // the other workers stop after their current record
+                next.set(scores.length);
+                throw e;
+            }
+            return scores;
+        }
+    }
+
+    private static void await(Future<Void> worker) throws IOException {
+        try {
+            worker.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scoring", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            throw new IllegalStateException("Scoring failed", e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        cpu.shutdownNow();
+    }
+}
@@ -0,0 +1,149 @@
+package org.titiplex.optimizer;
+
+import org.titiplex.city.City;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The full state of a plain annealing run between two iterations: configuration, iterations done, current
+ * and best cities with their scores, generator state, running sums of the evaluator and what the mutation
+ * scheduler learnt. {@link Optimizer#resume} continues a run from it exactly as the run would have gone on.
+ * <p>
+ * The file is a gzipped stream of the fields, the cities in the format of {@link City#writeState}. It is
+ * written to a sibling file first, synced, then moved over the previous checkpoint, so a crash leaves
+ * either checkpoint complete.
+ */
+public final class Checkpoint {
+
+    private static final int MAGIC = 0x43504b54;
+    private static final int VERSION = 1;
+
+    private final Optimizer.Config config;
+    private final int iteration;
+    final City current, best;
+    final double currentScore, bestScore;
+    final long rngSeed, rngGamma;
+    final double resSum, penSum;
+    final MutationScheduler scheduler;
+
+    /**
+     * The cities must not change afterwards: take snapshots, and take them on the thread of the run.
+     */
+    Checkpoint(Optimizer.Config config, int iteration, City current, double currentScore, City best,
+               double bestScore, SplitMix rnd, DeltaEvaluator evaluator, MutationScheduler scheduler) {
+        this(config, iteration, current, currentScore, best, bestScore, rnd.seed(), rnd.gamma(),
+                evaluator.residentialSum(), evaluator.penaltySum(), scheduler);
+    }
+
+    private Checkpoint(Optimizer.Config config, int iteration, City current, double currentScore, City best,
+                       double bestScore, long rngSeed, long rngGamma, double resSum, double penSum,
+                       MutationScheduler scheduler) {
+        this.config = config;
+        this.iteration = iteration;
+        this.current = current;
+        this.currentScore = currentScore;
+        this.best = best;
+        this.bestScore = bestScore;
+        this.rngSeed = rngSeed;
+        this.rngGamma = rngGamma;
+        this.resSum = resSum;
+        this.penSum = penSum;
+        this.scheduler = scheduler;
+    }
+
+    public Optimizer.Config config() {
+        return config;
+    }
+
+    /**
+     * Number of iterations done; a resumed run goes on from the next one.
+     */
+    public int iteration() {
+        return iteration;
+    }
+
+    public double bestScore() {
+        return bestScore;
+    }
+
+    /**
+     * A copy of the best city found so far.
+     */
+    public City best() {
+        return best.snapshot();
+    }
+
+    public static Checkpoint read(Path file) throws IOException {
+        try (var in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(Files.newInputStream(file))))) {
+            if (in.readInt() != MAGIC) throw new IOException("Not a checkpoint: " + file);
+            int version = in.readInt();
+            if (version != VERSION) throw new IOException("Unsupported checkpoint version " + version + ": " + file);
+            var config = new Optimizer.Config(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readLong(),
+                    in.readDouble(), in.readDouble(), in.readInt(), in.readBoolean());
+            int iteration = in.readInt();
+            double currentScore = in.readDouble(), bestScore = in.readDouble();
+            long rngSeed = in.readLong(), rngGamma = in.readLong();
+            double resSum = in.readDouble(), penSum = in.readDouble();
+            MutationScheduler scheduler = MutationScheduler.read(in);
+            City current = City.readState(in);
+            City best = City.readState(in);
+            return new Checkpoint(config, iteration, current, currentScore, best, bestScore, rngSeed, rngGamma,
+                    resSum, penSum, scheduler);
+        }
+    }
+
+    /**
+     * Writes the checkpoint over the file, atomically where the file system allows it.
+     */
+    void write(Path file) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            var gzip = new GZIPOutputStream(Channels.newOutputStream(channel));
+            var out = new DataOutputStream(new BufferedOutputStream(gzip));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(config.width());
+            out.writeInt(config.height());
+            out.writeInt(config.iterations());
+            out.writeInt(config.replicas());
+            out.writeLong(config.seed());
+            out.writeDouble(config.t0());
+            out.writeDouble(config.alpha());
+            out.writeInt(config.tileSize());
+            out.writeBoolean(config.adaptiveMutations());
+            out.writeInt(iteration);
+            out.writeDouble(currentScore);
+            out.writeDouble(bestScore);
+            out.writeLong(rngSeed);
+            out.writeLong(rngGamma);
+            out.writeDouble(resSum);
+            out.writeDouble(penSum);
+            scheduler.write(out);
+            current.writeState(out);
+            best.writeState(out);
+            // the gzip stream is finished, not closed, so that the channel can be synced before the move
+            out.flush();
+            gzip.finish();
+            channel.force(true);
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.titiplex.optimizer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes the checkpoints of one run on a background thread, so that the run only pays for the snapshots.
+ * A checkpoint that comes due while the previous one is still being written is skipped rather than queued.
+ * <p>
+ * A failed write is rethrown on the thread of the run at the next checkpoint, or when the writer is closed:
+ * a run that was asked for checkpoints does not go on without them.
+ */
+final class CheckpointWriter implements AutoCloseable {
+
+    private final Path file;
+    private final int interval;
+    private final ExecutorService thread = Executors.newSingleThreadExecutor(
+            Thread.ofPlatform().name("checkpoint-writer").daemon().factory());
+    private Future<?> pending;
+
+    CheckpointWriter(Path file, int interval) {
+        if (file == null || interval <= 0) throw new IllegalArgumentException("Invalid checkpoints");
+        this.file = file;
+        this.interval = interval;
+    }
+
+    /**
+     * Whether a checkpoint should be taken after the given number of iterations: one is due every interval,
+     * and the previous one is written.
+     */
+    boolean due(int done) {
+        if (done % interval != 0) return false;
+        if (pending == null) return true;
+        if (!pending.isDone()) return false;
+        check();
+        return true;
+    }
+
+    void write(Checkpoint checkpoint) {
+        pending = thread.submit(() -> {
+            checkpoint.write(file);
+            return null;
+        });
+    }
+
+    /**
+     * Waits for the checkpoint being written.
+     */
+    @Override
+    public void close() {
+        try {
+            if (pending != null) check();
+        } finally {
+            thread.shutdown();
+        }
+    }
+
+    private void check() {
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while writing a checkpoint", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw new UncheckedIOException("Checkpoint failed: " + file, io);
+            }
+            throw new IllegalStateException("Checkpoint failed: " + file, e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.titiplex.optimizer;
+
+import org.titiplex.city.Building;
+import org.titiplex.city.City;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Everything the scoring code reads from a city, gathered in one pass over the grid: residential cells,
+ * live buildings, residences well connected to the road network and unconnected roads. Counts per type,
+ * total cost and factories are read from the city itself.
+ * <p>
+ * A snapshot: it no longer matches the city once the city is mutated.
+ */
+final class CityAnalysis {
+
+    final City city;
+    final List<City.Coordinates> resCells;
+    final List<Building> buildings;
+    final int unconnectedRoads;
+    // by building id, for residential buildings only
+    private final boolean[] wellConnected;
+
+    private CityAnalysis(City city) {
+        this.city = city;
+
+        List<City.Coordinates> res = new ArrayList<>();
+        this.wellConnected = new boolean[city.idBound()];
+        boolean[] seen = new boolean[city.idBound()];
+        int start = city.index(city.start.x(), city.start.y());
+        int unconnected = 0;
+        for (int y = 0; y < city.height; y++) {
+            for (int x = 0; x < city.width; x++) {
+                int i = city.index(x, y);
+                switch (city.typeAt(i)) {
+                    case RESIDENTIAL -> {
+                        res.add(new City.Coordinates(x, y));
+                        int id = city.idAt(i);
+                        if (!seen[id]) {
+                            seen[id] = true;
+                            wellConnected[id] = ResidentialOptimizer.isResidentialBuildingWellConnected(city.buildingById(id), city);
+                        }
+                    }
+                    case ROAD, CROSSING -> {
+                        if (i != start && !city.isRoadConnected(i)) unconnected++;
+                    }
+                    default -> {
+                        // services are read from the City layers
+                    }
+                }
+            }
+        }
+        this.resCells = Collections.unmodifiableList(res);
+        this.unconnectedRoads = unconnected;
+
+        this.buildings = Collections.unmodifiableList(city.buildings());
+    }
+
+    static CityAnalysis of(City city) {
+        if (city == null) throw new IllegalArgumentException("City is null");
+        return new CityAnalysis(city);
+    }
+
+    /**
+     * Whether the residential building on the cell is well connected to the road network.
+     */
+    boolean wellConnected(City.Coordinates r) {
+        return wellConnected[city.idAt(city.index(r.x(), r.y()))];
+    }
+}
@@ -0,0 +1,39 @@
+package org.titiplex.optimizer;
+
+import java.io.PrintStream;
+
+/**
+ * Progress bar on a console, redrawn at most once per interval and when the run completes, so that a
+ * listener called on every iteration costs a clock read most of the time.
+ */
+public final class ConsoleProgress implements Optimizer.Listener {
+
+    private static final int BAR_LENGTH = 100;
+
+    private final PrintStream out;
+    private final long intervalNanos;
+    private long last;
+    private boolean drawn;
+
+    public ConsoleProgress(PrintStream out, long intervalMillis) {
+        if (out == null || intervalMillis < 0) throw new IllegalArgumentException("Invalid console progress");
+        this.out = out;
+        this.intervalNanos = intervalMillis * 1_000_000L;
+    }
+
+    @Override
+    public void progress(int done, int total) {
+        long now = System.nanoTime();
+        if (drawn && done < total && now - last < intervalNanos) return;
+        drawn = true;
+        last = now;
+        out.print("\r" + bar(done, total));
+    }
+
+    static String bar(int done, int total) {
+        double percentage = total == 0 ? 1.0 : (double) done / total;
+        int filledLength = (int) (percentage * BAR_LENGTH);
+        return "[" + "=".repeat(Math.max(0, filledLength)) + " ".repeat(Math.max(0, BAR_LENGTH - filledLength)) + "]"
+                + String.format(" %3d%%", (int) (percentage * 100));
+    }
+}
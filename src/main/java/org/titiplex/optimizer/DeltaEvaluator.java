@@ -0,0 +1,405 @@
+package org.titiplex.optimizer;
+
+import org.titiplex.city.Building;
+import org.titiplex.city.City;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incremental version of {@link GameOptimizer#score(City)} for the annealing loop.
+ * <p>
+ * The evaluator caches every term of the score for its current city: one term per residential cell,
+ * one penalty per building, the road and rail networks and the residence counters; building counts and
+ * cost are read from the running index of the city. A candidate is evaluated
+ * from the cells its mutation touched: only the residences, buildings and network cells around those cells
+ * are recomputed. The result matches the full score up to floating-point rounding.
+ * <p>
+ * The candidate is the current city (or a copy of it) whose mutations are journaled since
+ * {@link City#beginChanges()}. When the candidate is rejected, the caller rolls the city back and the
+ * evaluated state is simply dropped by the next evaluation.
+ */
+class DeltaEvaluator {
+
+    // residences further than this from a park, school or station get no bonus from it
+    private static final int BONUS_REACH = 6;
+
+    private final int width, height, startIndex;
+    private City current;
+    private double score;
+
+    // cached terms of the current city
+    private final double[] resTerm;
+    private double[] buildingPen = new double[0];
+    private boolean[] wellConnected = new boolean[0];
+    private int resCount, roadCells;
+    private double resSum, penSum;
+
+    // state of the last evaluated candidate, applied by accept()
+    private City pending;
+    private double pendingScore;
+    private int nextResCount, nextRoadCells;
+    private double nextResSum, nextPenSum;
+    private final IntList termCells = new IntList();
+    private final DoubleList termValues = new DoubleList();
+    private final IntList penIds = new IntList();
+    private final DoubleList penValues = new DoubleList();
+    private final IntList wellIds = new IntList();
+    private boolean[] nextWell = new boolean[0];
+
+    // scratch sets, an entry belongs to the set when its stamp equals the current epoch
+    private final int[] cellStamp, resStamp;
+    private int[] oldIdStamp = new int[0], newIdStamp = new int[0], penStamp = new int[0], wellStamp = new int[0];
+    private int epoch;
+    private final IntList touched = new IntList(), diff = new IntList(), affected = new IntList();
+    private final IntList oldIds = new IntList(), newIds = new IntList(), clearIds = new IntList();
+    private final List<Building> oldBuildings = new ArrayList<>();
+    private final IntList resIds = new IntList();
+
+    DeltaEvaluator(City city) {
+        this.width = city.getWidth();
+        this.height = city.getHeight();
+        this.startIndex = city.index(city.start.x(), city.start.y());
+        int n = width * height;
+        this.resTerm = new double[n];
+        this.cellStamp = new int[n];
+        this.resStamp = new int[n];
+        reset(city);
+    }
+
+    /**
+     * Recomputes every cached term from scratch for the given city.
+     */
+    void reset(City city) {
+        current = city;
+        pending = null;
+        ensureIds(city.idBound());
+
+        penSum = 0;
+        resCount = 0;
+        roadCells = 0;
+        for (int i = 0; i < width * height; i++) {
+            Building.Type t = city.typeAt(i);
+            if (t == Building.Type.RESIDENTIAL) resCount++;
+            if (GameOptimizer.isRoad(t) && i != startIndex) roadCells++;
+        }
+        for (int id = 1; id < city.idBound(); id++) {
+            Building b = city.buildingById(id);
+            buildingPen[id] = 0;
+            if (b == null) continue;
+            buildingPen[id] = GameOptimizer.buildingPenalty(city, b);
+            penSum += buildingPen[id];
+            if (b.chars().type == Building.Type.RESIDENTIAL) {
+                wellConnected[id] = ResidentialOptimizer.isResidentialBuildingWellConnected(b, city);
+            }
+        }
+
+        Arrays.fill(resTerm, 0);
+        resSum = 0;
+        for (int i = 0; i < width * height; i++) {
+            if (city.typeAt(i) != Building.Type.RESIDENTIAL) continue;
+            resTerm[i] = ResidentialOptimizer.localScoreForResidence(city, i, wellConnected[city.idAt(i)]);
+            resSum += resTerm[i];
+        }
+        score = compose(city, resCount, resSum, penSum, roadCells);
+    }
+
+    /**
+     * Resets the evaluator for the city, then takes the running sums saved from an evaluator of that city,
+     * see {@link #residentialSum()}, so that later scores are exactly those it would have computed.
+     */
+    void restore(City city, double resSum, double penSum) {
+        reset(city);
+        this.resSum = resSum;
+        this.penSum = penSum;
+        score = compose(city, resCount, resSum, penSum, roadCells);
+    }
+
+    double score() {
+        return score;
+    }
+
+    /**
+     * Running sum of the residence terms. It carries the rounding of every accepted candidate, which a
+     * reset from scratch does not reproduce, so it is saved along with the city.
+     */
+    double residentialSum() {
+        return resSum;
+    }
+
+    /**
+     * Running sum of the building penalties, see {@link #residentialSum()}.
+     */
+    double penaltySum() {
+        return penSum;
+    }
+
+    City current() {
+        return current;
+    }
+
+    /**
+     * Scores a candidate obtained by mutating the current city, or a copy of it, under a journal.
+     *
+     * @param candidate the mutated city, still journaling its changes
+     * @return the score of the candidate, equal to {@code GameOptimizer.score(candidate)}
+     */
+    double evaluate(City candidate) {
+        pending = candidate;
+        termCells.clear();
+        termValues.clear();
+        penIds.clear();
+        penValues.clear();
+        wellIds.clear();
+        ensureIds(candidate.idBound());
+
+        // touched cells, counters and the buildings that were removed or placed
+        int e = ++epoch;
+        touched.clear();
+        oldIds.clear();
+        oldBuildings.clear();
+        newIds.clear();
+        nextResCount = resCount;
+        nextRoadCells = roadCells;
+        for (int k = 0; k < candidate.changeCount(); k++) {
+            int c = candidate.changedCell(k);
+            // the first write of a cell holds its content before the mutation
+            if (cellStamp[c] == e) continue;
+            cellStamp[c] = e;
+            touched.add(c);
+            Building old = candidate.previousBuilding(k);
+            Building.Type o = old.chars().type, n = candidate.typeAt(c);
+            if (o == Building.Type.RESIDENTIAL) nextResCount--;
+            if (n == Building.Type.RESIDENTIAL) nextResCount++;
+            if (c != startIndex) {
+                if (GameOptimizer.isRoad(o)) nextRoadCells--;
+                if (GameOptimizer.isRoad(n)) nextRoadCells++;
+            }
+            int oid = candidate.previousId(k), nid = candidate.idAt(c);
+            if (oid != 0 && oldIdStamp[oid] != e) {
+                oldIdStamp[oid] = e;
+                oldIds.add(oid);
+                oldBuildings.add(old);
+            }
+            if (nid != 0 && newIdStamp[nid] != e) {
+                newIdStamp[nid] = e;
+                newIds.add(nid);
+            }
+        }
+
+        // networks; diff collects the cells whose status flipped. The city keeps both networks up to date
+        // and logs the cells they linked or unlinked, the first flip of a cell tells its state before
+        diff.clear();
+        int fe = ++epoch;
+        for (int k = 0; k < candidate.roadFlipCount(); k++) {
+            int c = candidate.roadFlipCell(k);
+            if (cellStamp[c] == fe) continue;
+            cellStamp[c] = fe;
+            if (candidate.roadFlipConnected(k) == candidate.isRoadConnected(c)) diff.add(c);
+        }
+        int roadDiffEnd = diff.size;
+
+        int le = ++epoch;
+        for (int k = 0; k < candidate.railFlipCount(); k++) {
+            int c = candidate.railFlipCell(k);
+            if (cellStamp[c] == le) continue;
+            cellStamp[c] = le;
+            if (candidate.railFlipLinked(k) == candidate.isRailLinkedToStation(c)) diff.add(c);
+        }
+
+        // building penalties: placed buildings and the neighbours of every cell whose status changed
+        int pe = ++epoch;
+        clearIds.clear();
+        for (int k = 0; k < oldIds.size; k++) markPen(oldIds.get(k), pe);
+        for (int k = 0; k < newIds.size; k++) markPen(newIds.get(k), pe);
+        for (int k = 0; k < touched.size; k++) markNeighbourBuildings(candidate, touched.get(k), pe);
+        for (int k = 0; k < diff.size; k++) markNeighbourBuildings(candidate, diff.get(k), pe);
+        nextPenSum = penSum;
+        for (int k = 0; k < clearIds.size; k++) {
+            int id = clearIds.get(k);
+            nextPenSum -= buildingPen[id];
+            Building b = candidate.buildingById(id);
+            // a removed building whose id was reused is replaced by the new one
+            double p = b != null ? GameOptimizer.buildingPenalty(candidate, b) : 0.0;
+            nextPenSum += p;
+            penIds.add(id);
+            penValues.add(p);
+        }
+
+        // residential buildings whose access to the network may have changed
+        int we = ++epoch;
+        resIds.clear();
+        for (int k = 0; k < newIds.size; k++) markRes(candidate, newIds.get(k), we);
+        for (int k = 0; k < roadDiffEnd; k++) {
+            int c = diff.get(k);
+            for (int d = 0; d < 4; d++) {
+                int n = candidate.neighbor(c, d);
+                if (n >= 0) markRes(candidate, candidate.idAt(n), we);
+            }
+        }
+        int re = ++epoch;
+        affected.clear();
+        for (int k = 0; k < resIds.size; k++) {
+            int id = resIds.get(k);
+            Building b = candidate.buildingById(id);
+            nextWell[id] = ResidentialOptimizer.isResidentialBuildingWellConnected(b, candidate);
+            wellIds.add(id);
+            for (int y = b.y0(); y < b.y1(); y++) {
+                for (int x = b.x0(); x < b.x1(); x++) markAffected(candidate.index(x, y), re);
+            }
+        }
+
+        // residences in reach of a service that appeared or disappeared, and the touched cells themselves
+        for (int k = 0; k < touched.size; k++) markAffected(touched.get(k), re);
+        for (int k = 0; k < oldIds.size; k++) markServiceWindow(candidate, oldBuildings.get(k), re);
+        for (int k = 0; k < newIds.size; k++) markServiceWindow(candidate, candidate.buildingById(newIds.get(k)), re);
+
+        nextResSum = resSum;
+        for (int k = 0; k < affected.size; k++) {
+            int c = affected.get(k);
+            double term = 0.0;
+            if (candidate.typeAt(c) == Building.Type.RESIDENTIAL) {
+                term = ResidentialOptimizer.localScoreForResidence(candidate, c, wellConnected(candidate.idAt(c), we));
+            }
+            nextResSum += term - resTerm[c];
+            termCells.add(c);
+            termValues.add(term);
+        }
+
+        pendingScore = compose(candidate, nextResCount, nextResSum, nextPenSum, nextRoadCells);
+        return pendingScore;
+    }
+
+    /**
+     * Makes the last evaluated candidate the current city.
+     */
+    void accept() {
+        if (pending == null) throw new IllegalStateException("No candidate to accept");
+        for (int k = 0; k < termCells.size; k++) resTerm[termCells.get(k)] = termValues.get(k);
+        for (int k = 0; k < penIds.size; k++) buildingPen[penIds.get(k)] = penValues.get(k);
+        for (int k = 0; k < wellIds.size; k++) wellConnected[wellIds.get(k)] = nextWell[wellIds.get(k)];
+        resCount = nextResCount;
+        roadCells = nextRoadCells;
+        resSum = nextResSum;
+        penSum = nextPenSum;
+        score = pendingScore;
+        current = pending;
+        pending = null;
+    }
+
+    /**
+     * Score from the cached terms; cost, counts and network sizes are read from the city's running indexes.
+     */
+    private double compose(City city, int resCount, double resSum, double penSum, int roadCells) {
+        if (resCount == 0) return -1e9;
+        double s = 0;
+        int targetRes = (width * height) / 8;
+        if (resCount < targetRes) s -= (targetRes - resCount) * 10.0;
+        s += resSum;
+        s -= 0.1 * city.totalCost();
+        s -= penSum;
+        // every connected cell but the start is a road
+        s -= (roadCells - (city.roadConnectedCount() - 1)) * 5_000_000.0;
+        s -= city.orphanRailCount() * 500.0 + city.stationCellsWithoutRail() * 5_000.0;
+        s -= GameOptimizer.buildingCountPenalty(city);
+        return s;
+    }
+
+    private boolean wellConnected(int id, int we) {
+        return wellStamp[id] == we ? nextWell[id] : wellConnected[id];
+    }
+
+    private void markPen(int id, int e) {
+        if (penStamp[id] == e) return;
+        penStamp[id] = e;
+        clearIds.add(id);
+    }
+
+    private void markNeighbourBuildings(City city, int c, int e) {
+        for (int d = 0; d < 4; d++) {
+            int n = city.neighbor(c, d);
+            if (n < 0) continue;
+            int id = city.idAt(n);
+            if (id != 0) markPen(id, e);
+        }
+    }
+
+    private void markRes(City city, int id, int e) {
+        if (id == 0 || wellStamp[id] == e) return;
+        Building b = city.buildingById(id);
+        if (b.chars().type != Building.Type.RESIDENTIAL) return;
+        wellStamp[id] = e;
+        resIds.add(id);
+    }
+
+    private void markAffected(int c, int e) {
+        if (resStamp[c] == e) return;
+        resStamp[c] = e;
+        affected.add(c);
+    }
+
+    private void markServiceWindow(City city, Building b, int e) {
+        Building.Type t = b.chars().type;
+        if (t != Building.Type.FIRE_STATION && t != Building.Type.POLICE_STATION && t != Building.Type.HEALTH_CLINIC
+                && t != Building.Type.RAILWAY_STATION && t != Building.Type.FACTORY
+                && t != Building.Type.PARK && t != Building.Type.SCHOOL) return;
+        int reach = Math.max(BONUS_REACH, Math.max(b.chars().radius_x, b.chars().radius_y));
+        int x0 = Math.max(0, b.x0() - reach), x1 = Math.min(width - 1, b.x1() - 1 + reach);
+        int y0 = Math.max(0, b.y0() - reach), y1 = Math.min(height - 1, b.y1() - 1 + reach);
+        for (int y = y0; y <= y1; y++) {
+            for (int x = x0; x <= x1; x++) {
+                int c = city.index(x, y);
+                if (city.typeAt(c) == Building.Type.RESIDENTIAL) markAffected(c, e);
+            }
+        }
+    }
+
+    private void ensureIds(int bound) {
+        if (buildingPen.length >= bound) return;
+        int n = Math.max(bound, buildingPen.length * 2);
+        buildingPen = Arrays.copyOf(buildingPen, n);
+        wellConnected = Arrays.copyOf(wellConnected, n);
+        nextWell = Arrays.copyOf(nextWell, n);
+        oldIdStamp = Arrays.copyOf(oldIdStamp, n);
+        newIdStamp = Arrays.copyOf(newIdStamp, n);
+        penStamp = Arrays.copyOf(penStamp, n);
+        wellStamp = Arrays.copyOf(wellStamp, n);
+    }
+
+    private static final class IntList {
+        int[] data = new int[16];
+        int size;
+
+        void add(int v) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+
+        int get(int k) {
+            return data[k];
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+
+    private static final class DoubleList {
+        double[] data = new double[16];
+        int size;
+
+        void add(double v) {
+            if (size == data.length) data = Arrays.copyOf(data, size * 2);
+            data[size++] = v;
+        }
+
+        double get(int k) {
+            return data[k];
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
@@ -3,10 +3,23 @@ package org.titiplex.optimizer;
 import org.titiplex.city.Building;
 import org.titiplex.city.City;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+import java.util.random.RandomGenerator;
 
 public class GameOptimizer {
-    static final Random rnd = new Random(777L);
+    // seed of the runs started from the static entry points
+    static final long DEFAULT_SEED = 777L;
+    // redraw period of the console progress bar
+    private static final long PROGRESS_INTERVAL_MS = 200;
+    // iterations between two checkpoints of a console run
+    static final int CHECKPOINT_INTERVAL = 100_000;
+
+    private static final Building.Characteristics[] CHARACTERISTICS = Building.Characteristics.values();
 
     private static final Map<Building.Type, int[]> TYPE_BOUNDS = Map.of(
             Building.Type.FIRE_STATION, new int[]{1, 4},
@@ -19,33 +32,43 @@ public class GameOptimizer {
     );
 
     public static double penalty(City city) {
-        if (city == null) throw new IllegalArgumentException("City is null");
+        return penalty(CityAnalysis.of(city));
+    }
+
+    static double penalty(CityAnalysis a) {
         double penalty = 0;
-        Set<City.Coordinates> goodRails = railsConnectedToStations(city);
-        Set<City.Coordinates> connectedRoads = connectedRoads(city);
 
-        for (var b : city.coords_to_building.values().stream().distinct().toList()) {
-            if (b.coords().isEmpty()) continue;
-            if (Building.sameChars(b, new Building(Building.Characteristics.ROAD)) && b.coords().contains(city.start))
-                continue;
-            boolean ok_road = false;
-            boolean ok_rail = false;
-            for (var c : b.coords()) {
-                for (var n : city.neighbors4(c)) {
-                    Building nb = city.coords_to_building.get(n);
-                    if (nb == null) continue;
-                    Building.Type nt = nb.chars().type;
+        for (var b : a.buildings) {
+            penalty += buildingPenalty(a.city, b);
+        }
+        return penalty;
+    }
+
+    /**
+     * Penalty of a single building: not next to a connected road, or not next to a rail linked to a station.
+     */
+    static double buildingPenalty(City city, Building b) {
+        if (!b.isPlaced()) return 0.0;
+        if (b.chars() == Building.Characteristics.ROAD && b.covers(city.start.x(), city.start.y()))
+            return 0.0;
+        boolean ok_road = false;
+        boolean ok_rail = false;
+        for (int y = b.y0(); y < b.y1(); y++) {
+            for (int x = b.x0(); x < b.x1(); x++) {
+                int c = city.index(x, y);
+                for (int d = 0; d < 4; d++) {
+                    int i = city.neighbor(c, d);
+                    if (i < 0) continue;
+                    Building.Type nt = city.typeAt(i);
                     if (b.chars().isNextToRoad) {
-                        if ((nt == Building.Type.ROAD || nt == Building.Type.CROSSING) &&
-                                connectedRoads.contains(n)) {
+                        if ((nt == Building.Type.ROAD || nt == Building.Type.CROSSING) && city.isRoadConnected(i)) {
                             ok_road = true;
                         }
                     } else {
                         ok_road = true;
                     }
                     if (b.chars().isNextToRail) {
-                        if ((nt == Building.Type.RAIL || nt == Building.Type.CROSSING) &&
-                                goodRails.contains(n)) {
+                        if ((nt == Building.Type.RAIL || nt == Building.Type.CROSSING) && city.isRailLinkedToStation(i)) {
                             ok_rail = true;
                         }
                     } else {
@@ -53,18 +76,17 @@ public class GameOptimizer {
                     }
                 }
             }
-            if (!ok_road) penalty += 5.0;
-            if (!ok_rail) penalty += 5.0;
         }
+        double penalty = 0.0;
+        if (!ok_road) penalty += 5.0;
+        if (!ok_rail) penalty += 5.0;
         return penalty;
     }
 
-    private static double buildingCountPenalty(City city) {
-        Map<Building.Type, Integer> typeCount = new EnumMap<>(Building.Type.class);
-        for (Building b : city.coords_to_building.values().stream().distinct().toList()) {
-            typeCount.merge(b.chars().type, 1, Integer::sum);
-        }
-
+    /**
+     * Penalizes building types outside of their {@code TYPE_BOUNDS}, from the running counts of the city.
+     */
+    static double buildingCountPenalty(City city) {
         double pen = 0.0;
 
         for (var entry : TYPE_BOUNDS.entrySet()) {
@@ -72,7 +94,7 @@ public class GameOptimizer {
             int[] bounds = entry.getValue();
             int min = bounds[0];
             int max = bounds[1];
-            int n = typeCount.getOrDefault(t, 0);
+            int n = city.count(t);
 
             if (n < min) {
                 pen += (min - n) * 100.0;
@@ -85,149 +107,47 @@ public class GameOptimizer {
         return pen;
     }
 
-    static Set<City.Coordinates> connectedRoads(City city) {
-        var visited = new HashSet<City.Coordinates>();
-        var queue = new ArrayDeque<City.Coordinates>();
-
-        City.Coordinates start = city.start;
-        visited.add(start);
-        queue.add(start);
-
-        while (!queue.isEmpty()) {
-            var c = queue.removeFirst();
-            for (var n : city.neighbors4(c)) {
-                var b = city.coords_to_building.get(n);
-                if (b != null && (b.chars().type == Building.Type.ROAD || b.chars().type == Building.Type.CROSSING) && !visited.contains(n)) {
-                    visited.add(n);
-                    queue.addLast(n);
-                }
-            }
-        }
-        return visited;
+    static boolean isRoad(Building.Type t) {
+        return t == Building.Type.ROAD || t == Building.Type.CROSSING;
     }
 
-    private static Set<City.Coordinates> railsConnectedToStations(City city) {
-        List<City.Coordinates> stationCells = new ArrayList<>();
-        for (var e : city.coords_to_building.entrySet()) {
-            if (e.getValue().chars().type == Building.Type.RAILWAY_STATION) {
-                stationCells.add(e.getKey());
-            }
-        }
-
-        Set<City.Coordinates> visited = new HashSet<>();
-        ArrayDeque<City.Coordinates> q = new ArrayDeque<>();
-
-        // BFS from all stations
-        for (City.Coordinates s : stationCells) {
-            visited.add(s);
-            q.add(s);
-        }
-
-        while (!q.isEmpty()) {
-            City.Coordinates cur = q.removeFirst();
-            for (City.Coordinates nb : city.neighbors4(cur)) {
-                Building b = city.coords_to_building.get(nb);
-                if (b == null) continue;
-
-                // rails and maybe stations
-                Building.Type t = b.chars().type;
-                if ((t == Building.Type.RAIL
-                        || t == Building.Type.RAILWAY_STATION
-                        || t == Building.Type.CROSSING)
-                        && visited.add(nb)) {
-                    q.addLast(nb);
-                }
-            }
+    /**
+     * Roads connected to the start point, in the editable area of the city.
+     */
+    static Set<City.Coordinates> connectedRoads(City city) {
+        var connected = new HashSet<City.Coordinates>();
+        City.Area area = city.editableArea();
+        for (int k = 0; k < area.size(); k++) {
+            City.Coordinates c = area.coordinates(k);
+            if (city.isRoadConnected(city.index(c.x(), c.y()))) connected.add(c);
         }
-        return visited;
+        return connected;
     }
 
     /**
      * Penalizes roads that are not connected to the start point.
      *
-     * @param city the city to evaluate.
+     * @param a the analysis of the city to evaluate.
      * @return a penalty score (malus)
      */
-    private static double roadPenalty(City city, Set<City.Coordinates> connectedRoads) {
-        double penalty = 0.0;
-        for (var entry : city.coords_to_building.entrySet()) {
-            var coord = entry.getKey();
-            var b = entry.getValue();
-            if ((b.chars().type == Building.Type.ROAD || b.chars().type == Building.Type.CROSSING)
-                    && !coord.equals(city.start)
-                    && !connectedRoads.contains(coord)) {
-                penalty += 5_000_000.0;
-            }
-        }
-        return penalty;
+    private static double roadPenalty(CityAnalysis a) {
+        return a.unconnectedRoads * 5_000_000.0;
     }
 
+    /**
+     * Penalizes rails not linked to a station, and station cells without a rail next to them.
+     */
     private static double railPenalty(City city) {
-        double penalty = 0.0;
-        Set<City.Coordinates> railComponent = railsConnectedToStations(city);
-
-        // penalty to orphan rails
-        for (var e : city.coords_to_building.entrySet()) {
-            City.Coordinates c = e.getKey();
-            Building b = e.getValue();
-            if (b.chars().type == Building.Type.RAIL && !railComponent.contains(c)) {
-                penalty += 500.0;
-            }
-        }
-
-        // penalty to stations without adjacent rails
-        for (var e : city.coords_to_building.entrySet()) {
-            City.Coordinates c = e.getKey();
-            Building b = e.getValue();
-            if (b.chars().type == Building.Type.RAILWAY_STATION) {
-                boolean hasRailNeighbour = false;
-                for (City.Coordinates nb : city.neighbors4(c)) {
-                    Building nbB = city.coords_to_building.get(nb);
-                    if (nbB == null) continue;
-                    Building.Type t = nbB.chars().type;
-                    if (t == Building.Type.RAIL || t == Building.Type.CROSSING) {
-                        hasRailNeighbour = true;
-                        break;
-                    }
-                }
-                if (!hasRailNeighbour) {
-                    penalty += 5_000.0;
-                }
-            }
-        }
-        return penalty;
+        return city.orphanRailCount() * 500.0 + city.stationCellsWithoutRail() * 5_000.0;
     }
 
     public static double score(City city) {
+        return score(CityAnalysis.of(city));
+    }
 
-        if (city == null) throw new IllegalArgumentException("City is null");
-
-        List<City.Coordinates> resCells = new ArrayList<>();
-        List<City.Coordinates> fireCells = new ArrayList<>();
-        List<City.Coordinates> policeCells = new ArrayList<>();
-        List<City.Coordinates> healthCells = new ArrayList<>();
-        List<City.Coordinates> parkCells = new ArrayList<>();
-        List<City.Coordinates> schoolCells = new ArrayList<>();
-        List<City.Coordinates> trainCells = new ArrayList<>();
-        List<City.Coordinates> factoryCells = new ArrayList<>();
-
-        // roads
-        Set<City.Coordinates> connectedRoads = connectedRoads(city);
-
-        fillCells(city, resCells, fireCells, policeCells, healthCells, parkCells, schoolCells, trainCells, factoryCells);
-
-        // list of residential distinct buildings
-        Set<Building> resBuildings = new HashSet<>();
-        for (City.Coordinates r : resCells) {
-            resBuildings.add(city.coords_to_building.get(r));
-        }
-
-        // is the building well connected ?
-        Map<Building, Boolean> resConnected = new HashMap<>();
-        for (Building b : resBuildings) {
-            boolean ok = ResidentialOptimizer.isResidentialBuildingWellConnected(b, city, connectedRoads);
-            resConnected.put(b, ok);
-        }
+    static double score(CityAnalysis a) {
+        City city = a.city;
+        List<City.Coordinates> resCells = a.resCells;
 
         double score = 0;
 
@@ -251,444 +171,359 @@ public class GameOptimizer {
         for (var r : resCells) {
 
             // check if residency is connected to the start point through road network
-            Building bRes = city.coords_to_building.get(r);
-            boolean connectedToEntry = Boolean.TRUE.equals(resConnected.get(bRes));
-            if (!connectedToEntry) {
+            if (!a.wellConnected(r)) {
                 // penalising only once per cell
                 score -= 50.0;
                 continue;
             }
 
-            // check if covered by factory pollution radius
-            boolean coveredFactory = false;
-            for (City.Coordinates s : factoryCells) {
-                Building bt = city.coords_to_building.get(s);
-                assert bt != null;
-                // factories always have square radii
-                int radius = bt.chars().radius_x;
-                if (City.manhattan(r, s) <= radius) {
-                    coveredFactory = true;
-                    break;
-                }
-            }
-            if (coveredFactory) score -= 3.0;
-
-            // check if covered by fire
-            boolean coveredFire = false;
-            for (City.Coordinates s : fireCells) {
-                Building bt = city.coords_to_building.get(s);
-                assert bt != null;
-                int radius_x = bt.chars().radius_x;
-                int radius_y = bt.chars().radius_y;
-                int dx = Math.abs(r.x() - s.x());
-                int dy = Math.abs(r.y() - s.y());
-                if (dx <= radius_x && dy <= radius_y) {
-                    coveredFire = true;
-                    break;
-                }
-            }
-            if (coveredFire) score += 3.0;
+            // check if covered by factory pollution radius (factories always have square radii)
+            if (ResidentialOptimizer.nearFactory(city, r.x(), r.y(), 0)) score -= 3.0;
+
+            // check if covered by fire, police, train station and health
+            int i = city.index(r.x(), r.y());
+            if (city.isCovered(Building.Kind.FIRE, i)) score += 3.0;
             else score -= 2.0;
 
-            // check if covered by police
-            boolean coveredPolice = false;
-            for (City.Coordinates s : policeCells) {
-                Building bt = city.coords_to_building.get(s);
-                assert bt != null;
-                int radius_x = bt.chars().radius_x;
-                int radius_y = bt.chars().radius_y;
-                int dx = Math.abs(r.x() - s.x());
-                int dy = Math.abs(r.y() - s.y());
-                if (dx <= radius_x && dy <= radius_y) {
-                    coveredPolice = true;
-                    break;
-                }
-            }
-            if (coveredPolice) score += 3.0;
+            if (city.isCovered(Building.Kind.POLICE, i)) score += 3.0;
             else score -= 2.0;
 
-            // check if covered by police
-            boolean coveredTrain = false;
-            for (City.Coordinates s : trainCells) {
-                Building bt = city.coords_to_building.get(s);
-                assert bt != null;
-                int radius_x = bt.chars().radius_x;
-                int radius_y = bt.chars().radius_y;
-                int dx = Math.abs(r.x() - s.x());
-                int dy = Math.abs(r.y() - s.y());
-                if (dx <= radius_x && dy <= radius_y) {
-                    coveredTrain = true;
-                    break;
-                }
-            }
-            if (coveredTrain) score += 1.5;
+            if (city.isCovered(Building.Kind.TRANSIT, i)) score += 1.5;
             else score -= 0.5;
 
-            // check if covered by health
-            boolean coveredHealth = false;
-            for (City.Coordinates s : healthCells) {
-                Building bt = city.coords_to_building.get(s);
-                assert bt != null;
-                int radius_x = bt.chars().radius_x;
-                int radius_y = bt.chars().radius_y;
-                int dx = Math.abs(r.x() - s.x());
-                int dy = Math.abs(r.y() - s.y());
-                if (dx <= radius_x && dy <= radius_y) {
-                    coveredHealth = true;
-                    break;
-                }
-            }
-            if (coveredHealth) score += 3.0;
+            if (city.isCovered(Building.Kind.HEALTH, i)) score += 3.0;
             else score -= 2.0;
 
             // parc / happiness
-            if (!parkCells.isEmpty()) {
-                int dMin = Integer.MAX_VALUE;
-                for (City.Coordinates p : parkCells) {
-                    dMin = Math.min(dMin, City.manhattan(r, p));
-                }
+            int dPark = city.distanceTo(Building.Type.PARK, i);
+            if (dPark != Integer.MAX_VALUE) {
                 // max(0, 3 - 0.5 * d)
-                double bonus = 3.0 - 0.5 * dMin;
+                double bonus = 3.0 - 0.5 * dPark;
                 if (bonus > 0) score += bonus;
             }
 
             // schools
-            if (!schoolCells.isEmpty()) {
-                int dMin = Integer.MAX_VALUE;
-                for (City.Coordinates s : schoolCells) {
-                    dMin = Math.min(dMin, City.manhattan(r, s));
-                }
-                if (dMin <= 5) score += 2.0;
-            }
+            int dSchool = city.distanceTo(Building.Type.SCHOOL, i);
+            if (dSchool != Integer.MAX_VALUE && dSchool <= 5) score += 2.0;
 
             // train station
-            if (!trainCells.isEmpty()) {
-                int dMin = Integer.MAX_VALUE;
-                for (City.Coordinates t : trainCells) {
-                    dMin = Math.min(dMin, City.manhattan(r, t));
-                }
-                double bonus = 2.0 - 0.3 * dMin;
+            int dTrain = city.distanceTo(Building.Type.RAILWAY_STATION, i);
+            if (dTrain != Integer.MAX_VALUE) {
+                double bonus = 2.0 - 0.3 * dTrain;
                 if (bonus > 0) score += bonus;
             }
         }
 
-        // global building cost
-        double totalCost = 0.0;
-        for (Building b : city.coords_to_building.values().stream().distinct().toList()) {
-            totalCost += b.getCost();
-        }
-        // tune the lambda according to score scale
-        score -= 0.1 * totalCost;
+        // global building cost, tune the lambda according to score scale
+        score -= 0.1 * city.totalCost();
 
         // constraints penalty
-        score -= penalty(city);
-        score -= roadPenalty(city, connectedRoads);
+        score -= penalty(a);
+        score -= roadPenalty(a);
         score -= railPenalty(city);
         score -= buildingCountPenalty(city);
 
         return score;
     }
 
-    private static void extendRoadFromNetwork(City city) {
-        // fetch already connected roads
-        Set<City.Coordinates> connected = connectedRoads(city);
-        if (connected.isEmpty()) return;
-
-        // choose one connected road as starting point (random)
-        List<City.Coordinates> roadList = new ArrayList<>(connected);
-        City.Coordinates base = roadList.get(rnd.nextInt(roadList.size()));
+    private static void extendRoadFromNetwork(City city, RandomGenerator rnd) {
+        // choose one already connected road as starting point (random)
+        int base = randomCell(city, CONNECTED_ROAD, rnd);
+        if (base < 0) return;
 
         // try to add a road on a void neighbor
-        List<City.Coordinates> neighbors = city.neighbors4(base);
-        Collections.shuffle(neighbors, rnd);
-        for (City.Coordinates n : neighbors) {
-            Building b = city.coords_to_building.get(n);
-            if (b != null && b.chars().type == Building.Type.VOID) {
-                city.setBuilding(n, new Building(Building.Characteristics.ROAD));
-                break;
+        int n = randomVoidNeighbor(city, base, rnd);
+        if (n >= 0) city.setBuilding(new City.Coordinates(city.x(n), city.y(n)), new Building(Building.Characteristics.ROAD));
+    }
+
+    private static final int CONNECTED_ROAD = 0, ROAD_CELL = 1;
+
+    /**
+     * A random cell of the editable area that is a connected road, or a road, -1 when there is none.
+     * Counts the candidates then walks to the chosen one, so nothing is collected.
+     */
+    private static int randomCell(City city, int what, RandomGenerator rnd) {
+        City.Area area = city.editableArea();
+        int n = 0;
+        for (int y = area.y0(); y < area.y1(); y++) {
+            for (int x = area.x0(); x < area.x1(); x++) {
+                if (matches(city, city.index(x, y), what)) n++;
+            }
+        }
+        if (n == 0) return -1;
+        int pick = rnd.nextInt(n);
+        for (int y = area.y0(); y < area.y1(); y++) {
+            for (int x = area.x0(); x < area.x1(); x++) {
+                int i = city.index(x, y);
+                if (matches(city, i, what) && pick-- == 0) return i;
             }
         }
+        throw new AssertionError();
     }
 
-    // random mutations
-    public static City randomMutation(City city) {
-        City nc = city.deepCopy();
+    private static boolean matches(City city, int i, int what) {
+        return what == CONNECTED_ROAD ? city.isRoadConnected(i) : city.typeAt(i) == Building.Type.ROAD;
+    }
 
-        double p = rnd.nextDouble();
+    /**
+     * A random empty neighbour of the cell, -1 when there is none.
+     */
+    private static int randomVoidNeighbor(City city, int c, RandomGenerator rnd) {
+        int n = 0;
+        for (int d = 0; d < 4; d++) {
+            int nb = city.neighbor(c, d);
+            if (nb >= 0 && city.typeAt(nb) == Building.Type.VOID) n++;
+        }
+        if (n == 0) return -1;
+        int pick = rnd.nextInt(n);
+        for (int d = 0; d < 4; d++) {
+            int nb = city.neighbor(c, d);
+            if (nb >= 0 && city.typeAt(nb) == Building.Type.VOID && pick-- == 0) return nb;
+        }
+        throw new AssertionError();
+    }
 
-        // 25% of mut are extensions of road
-        if (p < 0.2) {
-            extendRoadFromNetwork(nc);
-            return nc;
-        } else if (p < 0.22) {
-            addRailStationMutation(nc);
-            return nc;
-        }
+    /**
+     * Mutates a copy of the city. The copy journals its changes, see {@link City#beginChanges()}.
+     */
+    public static City randomMutation(City city, RandomGenerator rnd) {
+        City nc = city.snapshot();
+        nc.beginChanges();
+        mutate(nc, rnd);
+        return nc;
+    }
 
-        // 50% improve local worse residency
-        if (p < 0.4) {
-            ResidentialOptimizer.improveWorstResidence(nc);
-            return nc;
-        }
+    /**
+     * Applies a random mutation in place, drawing from the given generator. Under a journal, it can be
+     * undone with {@link City#rollbackChanges()}. Only the editable area of the city is searched and
+     * changed, see {@link City#restrictEdits(City.Area)}.
+     *
+     * @return the branch that was applied, whether it changed the city or not
+     */
+    public static Mutation mutate(City city, RandomGenerator rnd) {
+        Mutation m = pick(rnd);
+        apply(m, city, rnd);
+        return m;
+    }
 
-        if (p < 0.6) {
-            ResidentialOptimizer.removeWorstResidenceIfReallyBad(nc);
-            // try to compensate by adding a new RES
-            ResidentialOptimizer.tryAddResidentialNearRoad(nc);
-            return nc;
-        }
+    /**
+     * Draws a branch from the fixed mix of {@link #mutate}.
+     */
+    static Mutation pick(RandomGenerator rnd) {
+        double p = rnd.nextDouble();
 
-        if (p < 0.80) {
-            CoverageOptimizer.removeUselessServices(nc);
-            return nc;
-        }
+        // 25% of mut are extensions of road
+        if (p < 0.2) return Mutation.EXTEND_ROAD;
+        if (p < 0.22) return Mutation.ADD_RAIL_STATION;
+        // 50% improve local worse residency
+        if (p < 0.4) return Mutation.IMPROVE_RESIDENCE;
+        if (p < 0.6) return Mutation.REPLACE_RESIDENCE;
+        if (p < 0.80) return Mutation.PRUNE_SERVICE;
 
         // 40% of other mutations : don't touch at roads or res
-        String action = switch (rnd.nextInt(3)) {
-            case 0 -> "add";
-            case 1 -> "remove";
-            default -> "move";
+        return switch (rnd.nextInt(3)) {
+            case 0 -> Mutation.ADD;
+            case 1 -> Mutation.REMOVE;
+            default -> Mutation.MOVE;
         };
+    }
 
-        List<City.Coordinates> coords = nc.allCoords();
-        City.Coordinates c = coords.get(rnd.nextInt(coords.size()));
-        Building b = nc.coords_to_building.get(c);
+    /**
+     * Applies one branch of {@link #mutate}.
+     */
+    static void apply(Mutation m, City city, RandomGenerator rnd) {
+        switch (m) {
+            case EXTEND_ROAD -> extendRoadFromNetwork(city, rnd);
+            case ADD_RAIL_STATION -> addRailStationMutation(city, rnd);
+            case IMPROVE_RESIDENCE -> ResidentialOptimizer.improveWorstResidence(city, rnd);
+            case REPLACE_RESIDENCE -> {
+                ResidentialOptimizer.removeWorstResidenceIfReallyBad(city);
+                // try to compensate by adding a new RES
+                ResidentialOptimizer.tryAddResidentialNearRoad(city, rnd);
+            }
+            case PRUNE_SERVICE -> CoverageOptimizer.removeUselessServices(city);
+            default -> editRandomCell(m, city, rnd);
+        }
+    }
 
-        if ("remove".equals(action)) {
+    private static void editRandomCell(Mutation action, City city, RandomGenerator rnd) {
+        City.Area area = city.editableArea();
+        City.Coordinates c = area.coordinates(rnd.nextInt(area.size()));
+        Building b = city.buildingAt(c);
+
+        if (action == Mutation.REMOVE) {
             // don't remove res of entry route
             if (b != null
                     && b.chars().type != Building.Type.RESIDENTIAL
-                    && !(b.chars().type == Building.Type.ROAD && c.equals(nc.start))) {
-                nc.rmBuilding(c);
+                    && !(b.chars().type == Building.Type.ROAD && c.equals(city.start))) {
+                city.rmBuilding(c);
             }
-        } else if ("add".equals(action)) {
+        } else if (action == Mutation.ADD) {
             if (b.chars().type == Building.Type.VOID) {
                 // no random res or road
-                Building.Characteristics[] values = Building.Characteristics.values();
                 Building.Characteristics chosen;
                 do {
-                    chosen = values[rnd.nextInt(values.length)];
+                    chosen = CHARACTERISTICS[rnd.nextInt(CHARACTERISTICS.length)];
                 } while (chosen.type == Building.Type.RESIDENTIAL
                         || chosen == Building.Characteristics.ROAD);
 
-                nc.setBuilding(c, new Building(chosen));
+                city.setBuilding(c, new Building(chosen));
             }
         } else { // move
             if (b != null
                     && b.chars().type != Building.Type.VOID
                     && b.chars().type != Building.Type.RESIDENTIAL
-                    && !(b.chars().type == Building.Type.ROAD && c.equals(nc.start))) {
+                    && !(b.chars().type == Building.Type.ROAD && c.equals(city.start))) {
 
-                var oldCoords = new HashSet<>(b.coords());
-                nc.rmBuilding(c);
+                city.rmBuilding(c);
+                // not removed when it reaches out of the editable area
+                if (city.hasBuilding(c)) return;
 
-                City.Coordinates c2 = coords.get(rnd.nextInt(coords.size()));
-                if (nc.coords_to_building.get(c2).chars().type == Building.Type.VOID) {
+                City.Coordinates c2 = area.coordinates(rnd.nextInt(area.size()));
+                if (city.buildingAt(c2).chars().type == Building.Type.VOID) {
                     Building moved = new Building(b.chars());
-                    boolean ok = nc.setBuilding(c2, moved);
+                    boolean ok = city.setBuilding(c2, moved);
                     if (!ok) {
-                        // rollback
-                        for (var t : oldCoords) {
-                            nc.coords_to_building.put(t, b);
-                        }
-                        b.coords().clear();
-                        b.coords().addAll(oldCoords);
+                        // rollback, the removed building kept its footprint
+                        city.restoreBuilding(b);
                     }
                 }
             }
         }
-        return nc;
     }
 
-    private static void addRailStationMutation(City city) {
-        List<City.Coordinates> roads = new ArrayList<>();
-        for (var e : city.coords_to_building.entrySet()) {
-            if (e.getValue().chars().type == Building.Type.ROAD) {
-                roads.add(e.getKey());
-            }
-        }
-        if (roads.isEmpty()) return;
-
-        City.Coordinates road = roads.get(rnd.nextInt(roads.size()));
-        List<City.Coordinates> nbs = city.neighbors4(road);
-        Collections.shuffle(nbs, rnd);
-        City.Coordinates stationCoord = null;
-        for (City.Coordinates nb : nbs) {
-            if (city.coords_to_building.get(nb).chars().type == Building.Type.VOID) {
-                stationCoord = nb;
-                break;
-            }
-        }
-        if (stationCoord == null) return;
-        Building station = new Building(Building.Characteristics.SMALL_RAILWAY_STATION);
-        if (!city.setBuilding(stationCoord, station)) return;
-
-        List<City.Coordinates> nbs2 = city.neighbors4(stationCoord);
-        Collections.shuffle(nbs2, rnd);
-        for (City.Coordinates nb : nbs2) {
-            if (city.coords_to_building.get(nb).chars() == Building.Characteristics.VOID) {
-                city.setBuilding(nb, new Building(Building.Characteristics.RAIL));
-                break;
-            }
+    private static void addRailStationMutation(City city, RandomGenerator rnd) {
+        int road = randomCell(city, ROAD_CELL, rnd);
+        if (road < 0) return;
+
+        int station = randomVoidNeighbor(city, road, rnd);
+        if (station < 0) return;
+        City.Coordinates stationCoord = new City.Coordinates(city.x(station), city.y(station));
+        if (!city.setBuilding(stationCoord, new Building(Building.Characteristics.SMALL_RAILWAY_STATION))) return;
+
+        int rail = randomVoidNeighbor(city, station, rnd);
+        if (rail >= 0) {
+            city.setBuilding(new City.Coordinates(city.x(rail), city.y(rail)), new Building(Building.Characteristics.RAIL));
         }
     }
 
     // optimisation
     public static City optimizeCity(int iterations, int width, int height) {
-        City current = City.randomInitialCity(width, height, rnd);
-//        current.printCity();
-        double currentScore = score(current);
-
-        City best = current.deepCopy();
-        double bestScore = currentScore;
-
-        double T0 = 1000.0;   // to adjust
-        double alpha = 3.0;   // bigger = quicker cooldown
-
-        for (int it = 0; it < iterations; it++) {
-            double t = (double) it / (double) iterations;
-            double T = T0 * Math.exp(-alpha * t);
-            City candidate = randomMutation(current);
-            double sNew = score(candidate);
-            double delta = sNew - currentScore;
-
-            boolean accept;
-            if (delta >= 0) accept = true;
-            else {
-                double prob = Math.exp(delta / Math.max(T, 1e-16));
-                accept = rnd.nextDouble() < prob;
-            }
-
-            if (accept) {
-                current = candidate;
-                currentScore = sNew;
+        return run(new Optimizer(Optimizer.Config.of(width, height, iterations, DEFAULT_SEED), consoleProgress()),
+                Optimizer::optimize);
+    }
 
-                if (sNew > bestScore) {
-                    best = candidate.deepCopy();
-                    bestScore = sNew;
-                }
-            }
-//            best.printCity();
-            printProgressBar(it + 1, iterations, 100);
+    /**
+     * Like {@link #optimizeCity(int, int, int)}, also sending the improvements of the run to the subscriber
+     * as it goes, see {@link ImprovementPublisher}; the subscriber is completed when the run is over.
+     */
+    public static City optimizeCity(int iterations, int width, int height,
+                                    Flow.Subscriber<? super ImprovementPublisher.Improvement> subscriber) {
+        try (ImprovementPublisher improvements = new ImprovementPublisher()) {
+            improvements.subscribe(subscriber);
+            var config = Optimizer.Config.of(width, height, iterations, DEFAULT_SEED);
+            return run(new Optimizer(config, consoleProgress().andThen(improvements)), Optimizer::optimize);
         }
+    }
 
-        // post treatment to ensure that the city is connected
-        ResidentialOptimizer.connectAllResidencesWithRoads(best);
-        System.out.println();
-        System.out.println("Best score: " + bestScore);
-        debugSummary(best);
-        return best;
+    /**
+     * Like {@link #optimizeCity(int, int, int)}, saving the run to the file every {@link #CHECKPOINT_INTERVAL}
+     * iterations so that {@link #resumeCity} can continue it if the process dies.
+     */
+    public static City optimizeCity(int iterations, int width, int height, Path checkpoint) {
+        var config = Optimizer.Config.of(width, height, iterations, DEFAULT_SEED);
+        return run(new Optimizer(config, consoleProgress()),
+                o -> o.optimizeWithCheckpoints(checkpoint, CHECKPOINT_INTERVAL));
     }
 
-    private static void printProgressBar(int currentProgress, int totalProgress, int barLength) {
-        double percentage = (double) currentProgress / totalProgress;
-        int filledLength = (int) (percentage * barLength);
-        int emptyLength = barLength - filledLength;
+    /**
+     * Anneals for the given wall-clock time rather than a number of iterations, and returns the best city
+     * found when the time is up or when the score has stopped improving, see {@link Optimizer.Budget}. The
+     * final road connection pass comes on top of the budget.
+     */
+    public static City optimizeCity(Duration budget, int width, int height) {
+        var optimizer = new Optimizer(Optimizer.Config.of(width, height, 0, DEFAULT_SEED), consoleProgress());
+        return run(optimizer, o -> {
+            Optimizer.BudgetedResult run = o.optimizeFor(Optimizer.Budget.wallClock(budget), () -> false);
+            System.out.println();
+            System.out.printf("Stopped on %s after %d iterations, roads connected in %d ms", run.stop().name().toLowerCase(Locale.ROOT),
+                    run.iterations(), run.connection().toMillis());
+            return run.result();
+        });
+    }
 
-        // Build the progress bar string
-        String bar = "[" +
-                "=".repeat(Math.max(0, filledLength)) + // Filled part of the bar
-                " ".repeat(Math.max(0, emptyLength)) + // Empty part of the bar
-                "]";
+    /**
+     * Continues a run of {@link #optimizeCity(int, int, int, Path)} from its checkpoint file, with the same
+     * result as the run without interruption.
+     */
+    public static City resumeCity(Path checkpoint) throws IOException {
+        Checkpoint from = Checkpoint.read(checkpoint);
+        System.out.println("Resuming from iteration " + from.iteration() + ", best score " + from.bestScore());
+        return run(new Optimizer(from.config(), consoleProgress()),
+                o -> o.resume(from, checkpoint, CHECKPOINT_INTERVAL));
+    }
 
-        // Add percentage
-        String percentageText = String.format(" %3d%%", (int) (percentage * 100));
+    /**
+     * Runs {@code replicas} annealing chains in parallel, on a ladder of temperatures, swapping their
+     * cities every few iterations (parallel tempering). The result only depends on the seed and the
+     * number of replicas.
+     *
+     * @param iterations iterations per replica
+     * @return the best city found by any replica
+     */
+    public static City optimizeCityParallel(int iterations, int width, int height, int replicas, long seed) {
+        var config = Optimizer.Config.of(width, height, iterations, seed).withReplicas(replicas);
+        return run(new Optimizer(config, consoleProgress()), Optimizer::optimize);
+    }
+
+    /**
+     * Console run: progress bar while optimizing, then the best score, the acceptance rate and a summary
+     * of the city.
+     */
+    private static City run(Optimizer optimizer, Function<Optimizer, Optimizer.Result> optimization) {
+        Optimizer.Result result = optimization.apply(optimizer);
+        System.out.println();
+        System.out.println("Best score: " + result.score());
+        OptimizerMetrics.Snapshot metrics = optimizer.metrics().snapshot();
+        System.out.printf("Accepted %.1f%% of %d proposals%n", 100 * metrics.acceptanceRate(), metrics.proposals());
+        debugSummary(result.city());
+        return result.city();
+    }
 
-        // Print to console using carriage return to overwrite the line
-        System.out.print("\r" + bar + percentageText);
+    private static Optimizer.Listener consoleProgress() {
+        return new ConsoleProgress(System.out, PROGRESS_INTERVAL_MS);
+    }
+
+    /**
+     * Metropolis rule: improvements are always taken, degradations with probability exp(delta / T).
+     */
+    static boolean accept(double delta, double T, RandomGenerator rnd) {
+        if (delta >= 0) return true;
+        double prob = Math.exp(delta / Math.max(T, 1e-16));
+        return rnd.nextDouble() < prob;
     }
 
     public static void debugSummary(City city) {
-        List<City.Coordinates> resCells = new ArrayList<>();
-        List<City.Coordinates> fireCells = new ArrayList<>();
-        List<City.Coordinates> policeCells = new ArrayList<>();
-        List<City.Coordinates> healthCells = new ArrayList<>();
-        List<City.Coordinates> parkCells = new ArrayList<>();
-        List<City.Coordinates> schoolCells = new ArrayList<>();
-        List<City.Coordinates> trainCells = new ArrayList<>();
-        List<City.Coordinates> factoryCells = new ArrayList<>();
-
-        Set<City.Coordinates> connectedRoads = connectedRoads(city);
-
-        fillCells(city, resCells, fireCells, policeCells, healthCells, parkCells, schoolCells, trainCells, factoryCells);
-
-        // distinct res buildings
-        Set<Building> resBuildings = new HashSet<>();
-        for (City.Coordinates r : resCells) {
-            resBuildings.add(city.coords_to_building.get(r));
-        }
-        Map<Building, Boolean> resConnected = new HashMap<>();
-        for (Building b : resBuildings) {
-            resConnected.put(b, ResidentialOptimizer.isResidentialBuildingWellConnected(b, city, connectedRoads));
-        }
+        CityAnalysis a = CityAnalysis.of(city);
 
         double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
-        for (City.Coordinates r : resCells) {
-            Building br = city.coords_to_building.get(r);
-            boolean conn = Boolean.TRUE.equals(resConnected.get(br));
-            double loc = ResidentialOptimizer.localScoreForResidence(
-                    city, r,
-                    fireCells, policeCells, healthCells, parkCells, schoolCells, trainCells, factoryCells,
-                    conn
-            );
+        for (City.Coordinates r : a.resCells) {
+            double loc = ResidentialOptimizer.localScoreForResidence(city, r, a.wellConnected(r));
             sum += loc;
             min = Math.min(min, loc);
             max = Math.max(max, loc);
         }
-        double avg = resCells.isEmpty() ? 0.0 : sum / resCells.size();
-
-        // total cost
-        double totalCost = city.coords_to_building.values()
-                .stream().distinct()
-                .mapToDouble(Building::getCost)
-                .sum();
-
-        // répartition des types
-        Map<Building.Type, Integer> typeCount = new EnumMap<>(Building.Type.class);
-        for (Building b : city.coords_to_building.values().stream().distinct().toList()) {
-            typeCount.merge(b.chars().type, 1, Integer::sum);
-        }
+        double avg = a.resCells.isEmpty() ? 0.0 : sum / a.resCells.size();
 
         System.out.println("=== DEBUG SUMMARY ===");
-        System.out.println("Residential cells: " + resCells.size());
-        System.out.println("Residential buildings: " + resBuildings.size());
+        System.out.println("Residential cells: " + a.resCells.size());
+        System.out.println("Residential buildings: " + city.count(Building.Type.RESIDENTIAL));
         System.out.println("Local res score avg/min/max: " + avg + " / " + min + " / " + max);
-        System.out.println("Total cost: " + totalCost);
+        System.out.println("Total cost: " + city.totalCost());
         System.out.println("Building counts:");
-        for (var e : typeCount.entrySet()) {
-            System.out.println("  " + e.getKey() + " : " + e.getValue());
+        for (Building.Type t : Building.Type.values()) {
+            if (city.count(t) > 0) System.out.println("  " + t + " : " + city.count(t));
         }
         System.out.println("=====================");
     }
-
-    static void fillCells(
-            City city,
-            List<City.Coordinates> resCells,
-            List<City.Coordinates> fireCells,
-            List<City.Coordinates> policeCells,
-            List<City.Coordinates> healthCells,
-            List<City.Coordinates> parkCells,
-            List<City.Coordinates> schoolCells,
-            List<City.Coordinates> trainCells,
-            List<City.Coordinates> factoryCells
-    ) {
-        for (var e : city.coords_to_building.entrySet()) {
-            Building.Type t = e.getValue().chars().type;
-            City.Coordinates c = e.getKey();
-
-            switch (t) {
-                case RESIDENTIAL -> resCells.add(c);
-                case FIRE_STATION -> fireCells.add(c);
-                case POLICE_STATION -> policeCells.add(c);
-                case HEALTH_CLINIC -> healthCells.add(c);
-                case PARK -> parkCells.add(c);
-                case SCHOOL -> schoolCells.add(c);
-                case FACTORY -> factoryCells.add(c);
-                case RAILWAY_STATION -> trainCells.add(c);
-                default -> {
-                    // ROAD, RAIL, CROSSING, VOID, etc.
-                }
-            }
-        }
-    }
 }
\ No newline at end of file
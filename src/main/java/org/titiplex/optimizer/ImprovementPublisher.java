@@ -0,0 +1,179 @@
+package org.titiplex.optimizer;
+
+import org.titiplex.city.City;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the improvements of a run to subscribers, as a listener of the run:
+ * <pre>
+ * try (ImprovementPublisher improvements = new ImprovementPublisher()) {
+ *     improvements.subscribe(view);
+ *     new Optimizer(config, improvements).optimize();
+ * }
+ * </pre>
+ * Improvements are conflated: a subscriber is only ever sent the latest best city, once it has requested
+ * one, and the improvements found in between are dropped for it. On the thread of the run, an improvement
+ * costs one snapshot of the city when there are subscribers and nothing otherwise; subscribers are
+ * signalled on the executor, each one at most one signal at a time, and never hold up the run.
+ * <p>
+ * Each subscriber is sent its own snapshot of the city, which it may keep and change. Closing the
+ * publisher completes the subscribers once they have been sent the last improvement. A subscriber that
+ * comes in during a run is first sent the latest improvement published to the others, if any.
+ */
+public final class ImprovementPublisher implements Flow.Publisher<ImprovementPublisher.Improvement>,
+        Optimizer.Listener, AutoCloseable {
+
+    /**
+     * A better city of the run, and its score during the run, before the road connection pass.
+     */
+    public record Improvement(City city, double score) {
+    }
+
+    // the best city so far, never changed: subscribers take their snapshots of it under its lock
+    private record Latest(City city, double score, long version) {
+    }
+
+    private final Executor executor;
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile Latest latest;
+    private volatile boolean closed;
+
+    /**
+     * Signals subscribers on the common pool.
+     */
+    public ImprovementPublisher() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ImprovementPublisher(Executor executor) {
+        if (executor == null) throw new IllegalArgumentException("Executor is required");
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super Improvement> subscriber) {
+        Objects.requireNonNull(subscriber);
+        Subscription s = new Subscription(subscriber);
+        subscriber.onSubscribe(s);
+        if (!s.cancelled) subscriptions.add(s);
+        s.start();
+    }
+
+    @Override
+    public void progress(int done, int total) {
+    }
+
+    @Override
+    public void improved(City best, double score) {
+        if (closed || subscriptions.isEmpty()) return;
+        Latest previous = latest;
+        latest = new Latest(best.snapshot(), score, previous == null ? 1 : previous.version + 1);
+        for (Subscription s : subscriptions) s.signal();
+    }
+
+    /**
+     * Number of subscribers that have neither cancelled nor completed.
+     */
+    public int subscribers() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Completes every subscriber after the last improvement; later improvements are ignored.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Subscription s : subscriptions) s.signal();
+    }
+
+    private final class Subscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super Improvement> subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        // signals not yet drained, the thread that raises it from 0 drains; held at 1 until onSubscribe returns
+        private final AtomicInteger pending = new AtomicInteger(1);
+        private volatile boolean cancelled;
+        private volatile long invalidRequest;
+        // version of the last city sent, only accessed while draining
+        private long sent;
+
+        Subscription(Flow.Subscriber<? super Improvement> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = n;
+            } else {
+                demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        void signal() {
+            if (pending.getAndIncrement() == 0) start();
+        }
+
+        void start() {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // no thread left to signal the subscriber on
+                cancel();
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                if (cancelled) return;
+                if (invalidRequest != 0) {
+                    cancel();
+                    subscriber.onError(new IllegalArgumentException("Non-positive request: " + invalidRequest));
+                    return;
+                }
+                Latest l = latest;
+                boolean fresh = l != null && l.version() != sent;
+                if (fresh && demand.get() > 0) {
+                    sent = l.version();
+                    City copy;
+                    synchronized (l) {
+                        copy = l.city().snapshot();
+                    }
+                    if (demand.get() != Long.MAX_VALUE) demand.decrementAndGet();
+                    try {
+                        subscriber.onNext(new Improvement(copy, l.score()));
+                    } catch (RuntimeException e) {
+                        cancel();
+                        return;
+                    }
+                    // the run may have improved again while the subscriber was busy
+                    continue;
+                }
+                if (closed && !fresh) {
+                    cancel();
+                    subscriber.onComplete();
+                    return;
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+    }
+}
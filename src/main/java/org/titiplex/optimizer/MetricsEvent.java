@@ -0,0 +1,38 @@
+package org.titiplex.optimizer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Running totals of the live {@link OptimizerMetrics}, one event per metrics object every period.
+ */
+@Name("org.titiplex.optimizer.Metrics")
+@Label("Optimizer Metrics")
+@Category({"SimCity", "Optimizer"})
+@Description("Running totals of an optimizer")
+@Period("1 s")
+@StackTrace(false)
+class MetricsEvent extends Event {
+
+    @Label("Run")
+    String run;
+
+    @Label("Proposals")
+    long proposals;
+
+    @Label("Accepted")
+    long accepted;
+
+    @Label("Improvements")
+    long improvements;
+
+    @Label("Mean Evaluation Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long meanEvaluationTime;
+}
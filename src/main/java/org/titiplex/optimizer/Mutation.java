@@ -0,0 +1,39 @@
+package org.titiplex.optimizer;
+
+/**
+ * The branches of {@link GameOptimizer#mutate}, in the order of the mix it draws from.
+ */
+public enum Mutation {
+    /**
+     * A road next to a connected road.
+     */
+    EXTEND_ROAD,
+    /**
+     * A railway station next to a road, and a rail next to the station.
+     */
+    ADD_RAIL_STATION,
+    /**
+     * A useful building next to the worst residence.
+     */
+    IMPROVE_RESIDENCE,
+    /**
+     * The worst residence removed when really bad, and a residence added next to a connected road.
+     */
+    REPLACE_RESIDENCE,
+    /**
+     * The service with the fewest residences in reach removed when it reaches at most one.
+     */
+    PRUNE_SERVICE,
+    /**
+     * A random building, neither residential nor road, on a random empty cell.
+     */
+    ADD,
+    /**
+     * The building of a random cell removed, unless residential or the main road.
+     */
+    REMOVE,
+    /**
+     * The building of a random cell moved to another random cell.
+     */
+    MOVE
+}
@@ -0,0 +1,164 @@
+package org.titiplex.optimizer;
+
+import org.titiplex.city.City;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.random.RandomGenerator;
+
+/**
+ * Picks the mutation branches of one annealing chain.
+ * <p>
+ * The fixed scheduler draws from the mix of {@link GameOptimizer#mutate}. The adaptive one is a bandit
+ * over the branches: it starts from that mix, then every {@link #REWEIGHT} proposals reweights the
+ * branches by the score improvement they delivered per nanosecond of mutation and scoring, in sums
+ * discounted by {@link #DECAY} so that the weights follow the stage of the run. A share {@link #EXPLORE}
+ * of the mix is always kept, so that a branch gone quiet is still tried and can come back.
+ * <p>
+ * Adaptive weights depend on measured times, so adaptive runs are not reproducible. A scheduler belongs
+ * to one chain and is not thread-safe.
+ */
+final class MutationScheduler {
+
+    private static final Mutation[] BRANCHES = Mutation.values();
+    // the mix of GameOptimizer.pick, by branch
+    static final double[] MIX = {0.2, 0.02, 0.18, 0.2, 0.2, 0.2 / 3, 0.2 / 3, 0.2 / 3};
+
+    // proposals drawn from the mix before the first reweighting
+    static final int WARMUP = 256;
+    static final int REWEIGHT = 64;
+    // weight of the past at each reweighting, a half-life of about 400 proposals
+    static final double DECAY = 0.9;
+    static final double EXPLORE = 0.1;
+    // the -1e9 of a city without residences would swamp every other reward
+    static final double MAX_GAIN = 1000.0;
+
+    private final boolean adaptive;
+    private final double[] gain = new double[BRANCHES.length];
+    private final double[] nanos = new double[BRANCHES.length];
+    private final double[] rate = new double[BRANCHES.length];
+    // cumulative probabilities of the branches
+    private final double[] cumulative = new double[BRANCHES.length];
+    private int proposals;
+
+    private MutationScheduler(boolean adaptive) {
+        this.adaptive = adaptive;
+        weigh(MIX);
+    }
+
+    private MutationScheduler(MutationScheduler other) {
+        this.adaptive = other.adaptive;
+        System.arraycopy(other.gain, 0, gain, 0, gain.length);
+        System.arraycopy(other.nanos, 0, nanos, 0, nanos.length);
+        System.arraycopy(other.cumulative, 0, cumulative, 0, cumulative.length);
+        this.proposals = other.proposals;
+    }
+
+    static MutationScheduler fixed() {
+        return new MutationScheduler(false);
+    }
+
+    static MutationScheduler adaptive() {
+        return new MutationScheduler(true);
+    }
+
+    static MutationScheduler of(Optimizer.Config config) {
+        return config.adaptiveMutations() ? adaptive() : fixed();
+    }
+
+    MutationScheduler copy() {
+        return new MutationScheduler(this);
+    }
+
+    /**
+     * Writes what the scheduler learnt, see {@link #read}.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeBoolean(adaptive);
+        for (int b = 0; b < BRANCHES.length; b++) {
+            out.writeDouble(gain[b]);
+            out.writeDouble(nanos[b]);
+            out.writeDouble(cumulative[b]);
+        }
+        out.writeInt(proposals);
+    }
+
+    static MutationScheduler read(DataInput in) throws IOException {
+        MutationScheduler s = new MutationScheduler(in.readBoolean());
+        for (int b = 0; b < BRANCHES.length; b++) {
+            s.gain[b] = in.readDouble();
+            s.nanos[b] = in.readDouble();
+            s.cumulative[b] = in.readDouble();
+        }
+        s.proposals = in.readInt();
+        return s;
+    }
+
+    /**
+     * Applies a branch drawn from the current weights, see {@link GameOptimizer#mutate}.
+     */
+    Mutation mutate(City city, RandomGenerator rnd) {
+        Mutation m = pick(rnd);
+        GameOptimizer.apply(m, city, rnd);
+        return m;
+    }
+
+    Mutation pick(RandomGenerator rnd) {
+        if (!adaptive) return GameOptimizer.pick(rnd);
+        double p = rnd.nextDouble();
+        for (int b = 0; b < BRANCHES.length - 1; b++) {
+            if (p < cumulative[b]) return BRANCHES[b];
+        }
+        return BRANCHES[BRANCHES.length - 1];
+    }
+
+    /**
+     * Records the outcome of a proposal.
+     *
+     * @param nanos time spent mutating and scoring
+     * @param delta score of the candidate minus that of the current city
+     */
+    void reward(Mutation m, long nanos, double delta) {
+        if (!adaptive) return;
+        int b = m.ordinal();
+        gain[b] += Math.min(Math.max(0.0, delta), MAX_GAIN);
+        this.nanos[b] += Math.max(1, nanos);
+        if (++proposals >= WARMUP && proposals % REWEIGHT == 0) reweight();
+    }
+
+    /**
+     * Probability of drawing the branch next.
+     */
+    double probability(Mutation m) {
+        int b = m.ordinal();
+        return b == 0 ? cumulative[0] : cumulative[b] - cumulative[b - 1];
+    }
+
+    private void reweight() {
+        double total = 0;
+        for (int b = 0; b < rate.length; b++) {
+            rate[b] = nanos[b] > 0 ? gain[b] / nanos[b] : 0.0;
+            total += rate[b];
+            gain[b] *= DECAY;
+            nanos[b] *= DECAY;
+        }
+        if (total == 0) {
+            weigh(MIX);
+            return;
+        }
+        for (int b = 0; b < rate.length; b++) {
+            rate[b] = EXPLORE * MIX[b] + (1 - EXPLORE) * rate[b] / total;
+        }
+        weigh(rate);
+    }
+
+    private void weigh(double[] weights) {
+        double sum = 0;
+        for (int b = 0; b < weights.length; b++) {
+            sum += weights[b];
+            cumulative[b] = sum;
+        }
+        for (int b = 0; b < weights.length; b++) cumulative[b] /= sum;
+    }
+}
@@ -0,0 +1,413 @@
+package org.titiplex.optimizer;
+
+import org.titiplex.city.City;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.SplittableRandom;
+import java.util.function.BooleanSupplier;
+
+/**
+ * City optimization by simulated annealing, by parallel tempering with several replicas, or by annealing
+ * tiles of a large map in parallel.
+ * <p>
+ * An optimizer only holds its configuration: every call to {@link #optimize()} draws from its own
+ * generator seeded from the configuration, so runs are reproducible and several of them
+ * can go on concurrently, from one optimizer or many. A plain annealing run can also be given a time
+ * {@link Budget} instead of a number of iterations. Nothing is printed; progress goes to the listener,
+ * and counts and timings of the annealing steps to the optimizer's {@link OptimizerMetrics}.
+ */
+public final class Optimizer {
+
+    /**
+     * @param replicas 1 for plain annealing, more for parallel tempering
+     * @param t0       initial temperature of the schedule T = t0 * exp(-alpha * progress)
+     * @param alpha    cooling rate, bigger = quicker cooldown
+     * @param tileSize side of the tiles annealed in parallel, 0 to anneal the whole map at once;
+     *                 iterations are then counted per tile
+     * @param adaptiveMutations whether chains reweight the mutation branches by the improvement they deliver
+     *                 per unit of time, see {@link MutationScheduler}; such runs are not reproducible
+     */
+    public record Config(int width, int height, int iterations, int replicas, long seed, double t0, double alpha,
+                         int tileSize, boolean adaptiveMutations) {
+
+        public static final double DEFAULT_T0 = 1000.0;
+        public static final double DEFAULT_ALPHA = 3.0;
+        // a tile holds the largest building
+        public static final int MIN_TILE_SIZE = 8;
+
+        public Config {
+            if (width <= 0 || height <= 0) throw new IllegalArgumentException("Invalid dimensions");
+            if (iterations < 0) throw new IllegalArgumentException("Invalid number of iterations");
+            if (replicas <= 0) throw new IllegalArgumentException("Invalid number of replicas");
+            if (!(t0 > 0) || !(alpha >= 0)) throw new IllegalArgumentException("Invalid schedule");
+            if (tileSize != 0 && tileSize < MIN_TILE_SIZE) throw new IllegalArgumentException("Invalid tile size");
+            if (tileSize != 0 && replicas != 1) throw new IllegalArgumentException("Tiles are annealed without replicas");
+        }
+
+        /**
+         * Plain annealing with the default schedule.
+         */
+        public static Config of(int width, int height, int iterations, long seed) {
+            return new Config(width, height, iterations, 1, seed, DEFAULT_T0, DEFAULT_ALPHA, 0, false);
+        }
+
+        public Config withReplicas(int replicas) {
+            return new Config(width, height, iterations, replicas, seed, t0, alpha, tileSize, adaptiveMutations);
+        }
+
+        public Config withSeed(long seed) {
+            return new Config(width, height, iterations, replicas, seed, t0, alpha, tileSize, adaptiveMutations);
+        }
+
+        public Config withTiles(int tileSize) {
+            return new Config(width, height, iterations, replicas, seed, t0, alpha, tileSize, adaptiveMutations);
+        }
+
+        public Config withAdaptiveMutations(boolean adaptiveMutations) {
+            return new Config(width, height, iterations, replicas, seed, t0, alpha, tileSize, adaptiveMutations);
+        }
+
+        double temperature(int it) {
+            return temperatureAt((double) it / (double) iterations);
+        }
+
+        /**
+         * Temperature once the given share of the run, from 0 to 1, is done.
+         */
+        double temperatureAt(double progress) {
+            return t0 * Math.exp(-alpha * progress);
+        }
+    }
+
+    /**
+     * Time given to a run of {@link #optimizeFor}. The schedule cools down over the budget, and the run
+     * stops early when its best score has not improved for a share {@code plateau} of it.
+     *
+     * @param cpu     whether the time is the CPU time of the thread of the run rather than wall-clock time
+     * @param plateau share of the budget without improvement after which the run stops, 1 to never stop early
+     */
+    public record Budget(Duration time, boolean cpu, double plateau) {
+
+        public static final double DEFAULT_PLATEAU = 0.25;
+        private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+        public Budget {
+            if (time == null || time.isNegative() || time.isZero()) throw new IllegalArgumentException("Invalid budget");
+            if (!(plateau > 0 && plateau <= 1)) throw new IllegalArgumentException("Invalid plateau");
+            if (cpu && !THREADS.isCurrentThreadCpuTimeSupported()) {
+                throw new UnsupportedOperationException("Thread CPU time is not available");
+            }
+        }
+
+        public static Budget wallClock(Duration time) {
+            return new Budget(time, false, DEFAULT_PLATEAU);
+        }
+
+        public static Budget cpuTime(Duration time) {
+            return new Budget(time, true, DEFAULT_PLATEAU);
+        }
+
+        public Budget withPlateau(double plateau) {
+            return new Budget(time, cpu, plateau);
+        }
+
+        // nanoseconds of the clock of the budget, from an arbitrary origin
+        long now() {
+            return cpu ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+        }
+    }
+
+    /**
+     * Why a run on a budget stopped.
+     */
+    public enum Stop {
+        BUDGET, PLATEAU, CANCELLED
+    }
+
+    /**
+     * Result of a run on a budget, with the number of iterations it made and the wall-clock time of the road
+     * connection pass that followed the annealing, outside the budget.
+     */
+    public record BudgetedResult(Result result, long iterations, Stop stop, Duration connection) {
+    }
+
+    /**
+     * Best city of a run, after the final road connection pass, and the score it had during the run.
+     */
+    public record Result(City city, double score) {
+    }
+
+    /**
+     * Called from the thread running the optimization.
+     */
+    @FunctionalInterface
+    public interface Listener {
+        Listener NONE = (done, total) -> {
+        };
+
+        void progress(int done, int total);
+
+        /**
+         * A better city was found; not every improvement of parallel and tiled runs is reported, only the
+         * best city after each round. The city belongs to the run: it must not be changed, and a listener
+         * that keeps it takes a {@link City#snapshot()} before returning. Before the road connection pass.
+         */
+        default void improved(City best, double score) {
+        }
+
+        /**
+         * A listener that calls this one, then the other.
+         */
+        default Listener andThen(Listener other) {
+            Listener first = this;
+            return new Listener() {
+                @Override
+                public void progress(int done, int total) {
+                    first.progress(done, total);
+                    other.progress(done, total);
+                }
+
+                @Override
+                public void improved(City best, double score) {
+                    first.improved(best, score);
+                    other.improved(best, score);
+                }
+            };
+        }
+    }
+
+    // progress of runs on a budget goes to the listener in thousandths
+    private static final int PERMILLE = 1000;
+    // runs on a budget read the clock about this many times over the budget
+    static final int CLOCK_READS = 1000;
+
+    private final Config config;
+    private final Listener listener;
+    private final OptimizerMetrics metrics;
+
+    public Optimizer(Config config) {
+        this(config, Listener.NONE);
+    }
+
+    public Optimizer(Config config, Listener listener) {
+        if (config == null || listener == null) throw new IllegalArgumentException("Config and listener are required");
+        this.config = config;
+        this.listener = listener;
+        this.metrics = new OptimizerMetrics(config.width() + "x" + config.height() + " seed " + config.seed());
+    }
+
+    public Config config() {
+        return config;
+    }
+
+    /**
+     * Metrics of the runs of this optimizer, cumulated over runs; can be polled while they go on.
+     */
+    public OptimizerMetrics metrics() {
+        return metrics;
+    }
+
+    public Result optimize() {
+        Result best;
+        if (config.tileSize() > 0) best = new TiledOptimizer(config, new SplittableRandom(config.seed()), metrics).run(listener);
+        else if (config.replicas() == 1) best = anneal(null, null);
+        else best = new ParallelTempering(config, new SplittableRandom(config.seed()), metrics).run(listener);
+        return finish(best);
+    }
+
+    /**
+     * Plain annealing run like {@link #optimize()}, saving its state to the file every {@code interval}
+     * iterations so that {@link #resume} can continue it. Checkpoints are written on a background thread
+     * from snapshots of the run, and one that comes due while the previous one is still being written is
+     * skipped. The run is the same as without checkpoints.
+     *
+     * @throws java.io.UncheckedIOException when a checkpoint could not be written, at the next checkpoint
+     */
+    public Result optimizeWithCheckpoints(Path checkpoint, int interval) {
+        checkPlainAnnealing();
+        try (CheckpointWriter checkpoints = new CheckpointWriter(checkpoint, interval)) {
+            return finish(anneal(null, checkpoints));
+        }
+    }
+
+    /**
+     * Continues the run saved in a checkpoint, which must have the configuration of this optimizer, and
+     * keeps saving it like {@link #optimizeWithCheckpoints}. The result is the one the run would have had
+     * without interruption.
+     */
+    public Result resume(Checkpoint from, Path checkpoint, int interval) {
+        checkPlainAnnealing();
+        if (!config.equals(from.config())) throw new IllegalArgumentException("Checkpoint of another configuration");
+        try (CheckpointWriter checkpoints = new CheckpointWriter(checkpoint, interval)) {
+            return finish(anneal(from, checkpoints));
+        }
+    }
+
+    /**
+     * Plain annealing for a time rather than a number of iterations, whose count in the configuration is
+     * ignored: the temperature follows the share of the budget spent, and the annealing stops when the budget
+     * is spent, when the best score has stopped improving, or when it is cancelled.
+     * <p>
+     * The clock is read, and cancellation polled, every so many iterations: the stride is set from the
+     * iterations made so far so that the clock is read about a thousand times over the budget, and at least
+     * every millisecond. The annealing overruns its budget by about that interval.
+     * <p>
+     * The road connection pass that every run ends with is not part of the budget: it runs after the
+     * annealing stops, for a time that grows with the map, and its duration is returned with the result.
+     * The listener gets the progress in thousandths of the budget. Iterations depend on timings, so such
+     * runs are not reproducible.
+     *
+     * @param cancelled polled with each read of the clock; interrupting the thread of the run cancels it too,
+     *                  and leaves its interrupt status set
+     */
+    public BudgetedResult optimizeFor(Budget budget, BooleanSupplier cancelled) {
+        if (budget == null || cancelled == null) throw new IllegalArgumentException("Budget and cancellation are required");
+        if (config.tileSize() > 0 || config.replicas() != 1) {
+            throw new IllegalArgumentException("Budgets are only given to plain annealing");
+        }
+        long total = budget.time().toNanos();
+        long plateau = (long) (budget.plateau() * total);
+        long interval = Math.max(1, Math.min(total / CLOCK_READS, 1_000_000L));
+        long start = budget.now();
+        long improved = start, now = start;
+        long it = 0, nextRead = 0;
+        double T = config.temperatureAt(0);
+        Stop stop;
+        Result best;
+        try (Chain chain = new Chain()) {
+            while (true) {
+                if (it == nextRead) {
+                    now = budget.now();
+                    long elapsed = now - start;
+                    if (elapsed >= total) stop = Stop.BUDGET;
+                    else if (now - improved >= plateau) stop = Stop.PLATEAU;
+                    else if (cancelled.getAsBoolean() || Thread.currentThread().isInterrupted()) stop = Stop.CANCELLED;
+                    else stop = null;
+                    if (stop != null) break;
+
+                    // iterations expected in one interval at the pace so far
+                    nextRead = it + (elapsed <= 0 || it == 0 ? 1 : Math.max(1, (long) ((double) it * interval / elapsed)));
+                    double progress = (double) elapsed / total;
+                    T = config.temperatureAt(progress);
+                    listener.progress((int) (progress * PERMILLE), PERMILLE);
+                }
+                // the time of an improvement is that of the last read of the clock
+                if (chain.step(T)) improved = now;
+                it++;
+            }
+            listener.progress(PERMILLE, PERMILLE);
+            best = new Result(chain.best, chain.bestScore);
+        }
+        long connecting = System.nanoTime();
+        finish(best);
+        return new BudgetedResult(best, it, stop, Duration.ofNanos(System.nanoTime() - connecting));
+    }
+
+    private void checkPlainAnnealing() {
+        if (config.tileSize() > 0 || config.replicas() != 1) {
+            throw new IllegalArgumentException("Checkpoints are only taken in plain annealing");
+        }
+    }
+
+    private static Result finish(Result best) {
+        // post treatment to ensure that the city is connected
+        ResidentialOptimizer.connectAllResidencesWithRoads(best.city());
+        return best;
+    }
+
+    /**
+     * Plain annealing, from the start or from a checkpoint, with or without checkpoints.
+     */
+    private Result anneal(Checkpoint from, CheckpointWriter checkpoints) {
+        int iterations = config.iterations();
+        try (Chain chain = from == null ? new Chain() : new Chain(from)) {
+            for (int it = from == null ? 0 : from.iteration(); it < iterations; it++) {
+                chain.step(config.temperature(it));
+                listener.progress(it + 1, iterations);
+                if (checkpoints != null && it + 1 < iterations && checkpoints.due(it + 1)) {
+                    checkpoints.write(chain.checkpoint(it + 1));
+                }
+            }
+            return new Result(chain.best, chain.bestScore);
+        }
+    }
+
+    /**
+     * A plain annealing chain: its city, evaluator, generator and scheduler, and the best city it met.
+     */
+    private final class Chain implements AutoCloseable {
+        final SplitMix rnd;
+        final City current;
+        final DeltaEvaluator evaluator;
+        final MutationScheduler scheduler;
+        final OptimizerMetrics.Recorder recorder = metrics.recorder();
+        double currentScore;
+        City best;
+        double bestScore;
+
+        Chain() {
+            rnd = new SplitMix(config.seed());
+            current = City.randomInitialCity(config.width(), config.height(), rnd);
+            evaluator = new DeltaEvaluator(current);
+            currentScore = evaluator.score();
+            scheduler = MutationScheduler.of(config);
+            best = current.snapshot();
+            bestScore = currentScore;
+        }
+
+        Chain(Checkpoint from) {
+            // the checkpoint may be resumed again, nothing of it is changed
+            rnd = new SplitMix(from.rngSeed, from.rngGamma);
+            current = from.current.snapshot();
+            evaluator = new DeltaEvaluator(current);
+            evaluator.restore(current, from.resSum, from.penSum);
+            currentScore = from.currentScore;
+            scheduler = from.scheduler.copy();
+            best = from.best.snapshot();
+            bestScore = from.bestScore;
+        }
+
+        /**
+         * One proposal at temperature T.
+         *
+         * @return whether the best city improved
+         */
+        boolean step(double T) {
+            current.beginChanges();
+            long t0 = System.nanoTime();
+            Mutation m = scheduler.mutate(current, rnd);
+            long t1 = System.nanoTime();
+            double sNew = evaluator.evaluate(current);
+            long t2 = System.nanoTime();
+
+            boolean accepted = GameOptimizer.accept(sNew - currentScore, T, rnd);
+            recorder.proposal(m, t1 - t0, t2 - t1, accepted, sNew > currentScore);
+            scheduler.reward(m, t2 - t0, sNew - currentScore);
+            if (!accepted) {
+                current.rollbackChanges();
+                return false;
+            }
+            evaluator.accept();
+            current.commitChanges();
+            currentScore = sNew;
+            if (sNew <= bestScore) return false;
+            best = current.snapshot();
+            bestScore = sNew;
+            listener.improved(best, bestScore);
+            return true;
+        }
+
+        Checkpoint checkpoint(int iteration) {
+            return new Checkpoint(config, iteration, current.snapshot(), currentScore, best.snapshot(), bestScore,
+                    rnd, evaluator, scheduler.copy());
+        }
+
+        @Override
+        public void close() {
+            recorder.close();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package org.titiplex.optimizer;
+
+import jdk.jfr.FlightRecorder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Counters and latency histograms of the annealing loops: proposals, acceptances and improvements of each
+ * mutation branch, time spent in each branch and time spent scoring the candidates.
+ * <p>
+ * Each chain records into its own {@link Recorder}, plain arrays that no other chain writes, and closes it
+ * when it stops; its counts then join the totals. {@link #snapshot()} can be polled at any time and adds up
+ * the totals and the open recorders; a snapshot taken during a run may miss the latest proposals of a chain,
+ * or count a proposal in one field and not yet in another. While a JFR recording is on, the metrics with
+ * open recorders are emitted every second as {@link MetricsEvent}, and each proposal as a
+ * {@link ProposalEvent} when that event is enabled.
+ */
+public final class OptimizerMetrics {
+
+    // latencies go to bucket b when they take [2^(b-1), 2^b) ns, bucket 0 for 0 ns
+    static final int BUCKETS = 64;
+    private static final Mutation[] BRANCHES = Mutation.values();
+    // histogram of the scoring time, after those of the branches
+    private static final int EVALUATION = BRANCHES.length;
+
+    // metrics with open recorders, added with the first one and removed with the last
+    private static final Set<OptimizerMetrics> LIVE = ConcurrentHashMap.newKeySet();
+
+    static {
+        FlightRecorder.addPeriodicEvent(MetricsEvent.class, OptimizerMetrics::emitLive);
+    }
+
+    private final String name;
+    // totals of the closed recorders and the open recorders, guarded by this
+    private final Counts closed = new Counts();
+    private final List<Recorder> open = new ArrayList<>();
+
+    /**
+     * @param name names the runs in the JFR events
+     */
+    public OptimizerMetrics(String name) {
+        this.name = name;
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * A recorder for one chain, open until closed.
+     */
+    Recorder recorder() {
+        Recorder r = new Recorder();
+        synchronized (this) {
+            if (open.isEmpty()) LIVE.add(this);
+            open.add(r);
+        }
+        return r;
+    }
+
+    /**
+     * Whether a chain is recording, that is whether the metrics are emitted as JFR events.
+     */
+    synchronized boolean recording() {
+        return !open.isEmpty();
+    }
+
+    public Snapshot snapshot() {
+        Counts sum = new Counts();
+        synchronized (this) {
+            sum.add(closed);
+            for (Recorder r : open) sum.add(r.counts);
+        }
+        Map<Mutation, Branch> branches = new EnumMap<>(Mutation.class);
+        for (Mutation m : BRANCHES) {
+            int b = m.ordinal();
+            branches.put(m, new Branch(sum.counts[3 * b], sum.counts[3 * b + 1], sum.counts[3 * b + 2], sum.latency(b)));
+        }
+        return new Snapshot(branches, sum.latency(EVALUATION));
+    }
+
+    private static void emitLive() {
+        for (OptimizerMetrics metrics : LIVE) {
+            Snapshot s = metrics.snapshot();
+            MetricsEvent event = new MetricsEvent();
+            event.run = metrics.name;
+            event.proposals = s.proposals();
+            event.accepted = s.accepted();
+            event.improvements = s.improvements();
+            event.meanEvaluationTime = (long) s.evaluation().mean();
+            event.commit();
+        }
+    }
+
+    /**
+     * Proposals, acceptances and improvements of each branch, and the latency histograms.
+     */
+    private static final class Counts {
+        final long[] counts = new long[3 * BRANCHES.length];
+        final long[] buckets = new long[(BRANCHES.length + 1) * BUCKETS];
+        final long[] totalNanos = new long[BRANCHES.length + 1];
+
+        void add(Counts other) {
+            for (int k = 0; k < counts.length; k++) counts[k] += other.counts[k];
+            for (int k = 0; k < buckets.length; k++) buckets[k] += other.buckets[k];
+            for (int k = 0; k < totalNanos.length; k++) totalNanos[k] += other.totalNanos[k];
+        }
+
+        Latency latency(int histogram) {
+            long[] counts = Arrays.copyOfRange(buckets, histogram * BUCKETS, (histogram + 1) * BUCKETS);
+            long count = 0;
+            for (long c : counts) count += c;
+            return new Latency(count, totalNanos[histogram], counts);
+        }
+    }
+
+    /**
+     * The counts of one chain. Not thread-safe: a chain records from one thread at a time.
+     */
+    final class Recorder implements AutoCloseable {
+
+        private final Counts counts = new Counts();
+
+        private Recorder() {
+        }
+
+        /**
+         * Records one proposal.
+         *
+         * @param mutateNanos   time spent applying the mutation
+         * @param evaluateNanos time spent scoring the candidate
+         * @param improved      whether the candidate scored above the current city
+         */
+        void proposal(Mutation m, long mutateNanos, long evaluateNanos, boolean accepted, boolean improved) {
+            int b = m.ordinal();
+            counts.counts[3 * b]++;
+            if (accepted) counts.counts[3 * b + 1]++;
+            if (improved) counts.counts[3 * b + 2]++;
+            time(b, mutateNanos);
+            time(EVALUATION, evaluateNanos);
+
+            ProposalEvent event = new ProposalEvent();
+            if (event.isEnabled()) {
+                event.run = name;
+                event.mutation = m.name();
+                event.mutationTime = mutateNanos;
+                event.evaluationTime = evaluateNanos;
+                event.accepted = accepted;
+                event.improved = improved;
+                event.commit();
+            }
+        }
+
+        private void time(int histogram, long nanos) {
+            int bucket = 64 - Long.numberOfLeadingZeros(Math.max(0, nanos));
+            counts.buckets[histogram * BUCKETS + Math.min(bucket, BUCKETS - 1)]++;
+            counts.totalNanos[histogram] += nanos;
+        }
+
+        /**
+         * Adds the counts to the totals; the metrics are no longer emitted once every recorder is closed.
+         */
+        @Override
+        public void close() {
+            OptimizerMetrics metrics = OptimizerMetrics.this;
+            synchronized (metrics) {
+                if (!open.remove(this)) return;
+                closed.add(counts);
+                if (open.isEmpty()) LIVE.remove(metrics);
+            }
+        }
+    }
+
+    /**
+     * Counts of one run or many, per mutation branch, with the scoring latency.
+     */
+    public record Snapshot(Map<Mutation, Branch> branches, Latency evaluation) {
+
+        public long proposals() {
+            return branches.values().stream().mapToLong(Branch::proposals).sum();
+        }
+
+        public long accepted() {
+            return branches.values().stream().mapToLong(Branch::accepted).sum();
+        }
+
+        public long improvements() {
+            return branches.values().stream().mapToLong(Branch::improved).sum();
+        }
+
+        public double acceptanceRate() {
+            long p = proposals();
+            return p == 0 ? 0.0 : (double) accepted() / p;
+        }
+    }
+
+    /**
+     * Proposals of a branch, how many were accepted and how many scored above the current city.
+     */
+    public record Branch(long proposals, long accepted, long improved, Latency time) {
+    }
+
+    /**
+     * Latency histogram in power-of-two buckets of nanoseconds, see {@link #BUCKETS}.
+     */
+    public record Latency(long count, long totalNanos, long[] buckets) {
+
+        public double mean() {
+            return count == 0 ? 0.0 : (double) totalNanos / count;
+        }
+
+        /**
+         * Upper bound of the bucket holding the q-quantile, in nanoseconds; exact within a factor of two.
+         */
+        public long quantile(double q) {
+            if (count == 0) return 0;
+            long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int b = 0; b < buckets.length; b++) {
+                seen += buckets[b];
+                if (seen >= Math.max(1, rank)) return b == 0 ? 0 : 1L << Math.min(b, 62);
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
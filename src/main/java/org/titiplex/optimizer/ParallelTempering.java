@@ -0,0 +1,167 @@
+package org.titiplex.optimizer;
+
+import org.titiplex.city.City;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Parallel tempering: several annealing chains (replicas) run on a thread pool, each one hotter than
+ * the previous by {@link #LADDER_RATIO}, and neighbouring replicas exchange their cities every
+ * {@link #SWAP_INTERVAL} iterations.
+ * <p>
+ * Replica 0 follows the schedule of plain annealing. Each replica draws from its own generator, split
+ * from the run's, and the swaps are decided on the calling thread between rounds, so a run is
+ * reproducible for a given seed and number of replicas whatever the thread scheduling.
+ */
+class ParallelTempering {
+
+    static final int SWAP_INTERVAL = 100;
+    static final double LADDER_RATIO = 2.0;
+
+    private final Optimizer.Config config;
+    private final Replica[] replicas;
+    private final SplittableRandom swapRnd;
+    private final OptimizerMetrics metrics;
+
+    ParallelTempering(Optimizer.Config config, SplittableRandom rnd, OptimizerMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        City initial = City.randomInitialCity(config.width(), config.height(), rnd.split());
+        this.swapRnd = rnd.split();
+        this.replicas = new Replica[config.replicas()];
+        for (int i = 0; i < replicas.length; i++) {
+            this.replicas[i] = new Replica(initial.snapshot(), Math.pow(LADDER_RATIO, i), rnd.split(),
+                    MutationScheduler.of(config));
+        }
+    }
+
+    Optimizer.Result run(Optimizer.Listener listener) {
+        int iterations = config.iterations();
+        int threads = Math.min(replicas.length, Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        for (Replica r : replicas) r.recorder = metrics.recorder();
+        try {
+            int round = 0;
+            double reported = best().bestScore;
+            for (int it = 0; it < iterations; it += SWAP_INTERVAL) {
+                int from = it, to = Math.min(iterations, it + SWAP_INTERVAL);
+                List<Callable<Void>> tasks = new ArrayList<>(replicas.length);
+                for (Replica r : replicas) {
+                    tasks.add(() -> {
+                        r.run(from, to, config);
+                        return null;
+                    });
+                }
+                for (Future<Void> f : pool.invokeAll(tasks)) f.get();
+
+                swap(round++ % 2, config.temperature(to));
+                Replica best = best();
+                if (best.bestScore > reported) {
+                    reported = best.bestScore;
+                    listener.improved(best.best, reported);
+                }
+                listener.progress(to, iterations);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Parallel tempering interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Replica failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            for (Replica r : replicas) r.recorder.close();
+        }
+        Replica best = best();
+        return new Optimizer.Result(best.best, best.bestScore);
+    }
+
+    private Replica best() {
+        Replica best = replicas[0];
+        for (Replica r : replicas) {
+            if (r.bestScore > best.bestScore) best = r;
+        }
+        return best;
+    }
+
+    /**
+     * Tries to exchange the cities of replicas (i, i + 1), for i of the given parity.
+     */
+    private void swap(int parity, double baseTemperature) {
+        for (int i = parity; i + 1 < replicas.length; i += 2) {
+            Replica a = replicas[i], b = replicas[i + 1];
+            double betaA = 1.0 / (baseTemperature * a.ladder);
+            double betaB = 1.0 / (baseTemperature * b.ladder);
+            double logProb = (b.score - a.score) * (betaA - betaB);
+            if (logProb >= 0 || swapRnd.nextDouble() < Math.exp(logProb)) {
+                City city = a.city;
+                a.city = b.city;
+                b.city = city;
+                DeltaEvaluator evaluator = a.evaluator;
+                a.evaluator = b.evaluator;
+                b.evaluator = evaluator;
+                double score = a.score;
+                a.score = b.score;
+                b.score = score;
+            }
+        }
+    }
+
+    private static final class Replica {
+        final double ladder;
+        final SplittableRandom rnd;
+        final MutationScheduler scheduler;
+        City city;
+        DeltaEvaluator evaluator;
+        double score;
+        City best;
+        double bestScore;
+        // open while the replicas run
+        OptimizerMetrics.Recorder recorder;
+
+        Replica(City city, double ladder, SplittableRandom rnd, MutationScheduler scheduler) {
+            this.ladder = ladder;
+            this.rnd = rnd;
+            this.scheduler = scheduler;
+            this.city = city;
+            this.evaluator = new DeltaEvaluator(city);
+            this.score = evaluator.score();
+            this.best = city.snapshot();
+            this.bestScore = score;
+        }
+
+        void run(int from, int to, Optimizer.Config config) {
+            for (int it = from; it < to; it++) {
+                double T = config.temperature(it) * ladder;
+                city.beginChanges();
+                long t0 = System.nanoTime();
+                Mutation m = scheduler.mutate(city, rnd);
+                long t1 = System.nanoTime();
+                double sNew = evaluator.evaluate(city);
+                long t2 = System.nanoTime();
+
+                boolean accepted = GameOptimizer.accept(sNew - score, T, rnd);
+                recorder.proposal(m, t1 - t0, t2 - t1, accepted, sNew > score);
+                scheduler.reward(m, t2 - t0, sNew - score);
+                if (accepted) {
+                    evaluator.accept();
+                    city.commitChanges();
+                    score = sNew;
+
+                    if (sNew > bestScore) {
+                        best = city.snapshot();
+                        bestScore = sNew;
+                    }
+                } else {
+                    city.rollbackChanges();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package org.titiplex.optimizer;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * One proposal of an annealing chain. Disabled by default: a run makes thousands per second.
+ */
+@Name("org.titiplex.optimizer.Proposal")
+@Label("Proposal")
+@Category({"SimCity", "Optimizer"})
+@Description("A mutation proposed by an annealing chain and its outcome")
+@Enabled(false)
+@StackTrace(false)
+class ProposalEvent extends Event {
+
+    @Label("Run")
+    String run;
+
+    @Label("Mutation")
+    String mutation;
+
+    @Label("Mutation Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long mutationTime;
+
+    @Label("Evaluation Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long evaluationTime;
+
+    @Label("Accepted")
+    boolean accepted;
+
+    @Label("Improved")
+    boolean improved;
+}
@@ -1,47 +1,45 @@
 package org.titiplex.optimizer;
 
 import org.titiplex.city.Building;
+import org.titiplex.city.CellSearch;
 import org.titiplex.city.City;
 
-import java.util.*;
+import java.util.List;
+import java.util.random.RandomGenerator;
 
 class ResidentialOptimizer {
 
     static boolean isResidentialBuildingWellConnected(
             Building b,
-            City city,
-            Set<City.Coordinates> connectedRoads
+            City city
     ) {
         if (b.chars().type != Building.Type.RESIDENTIAL) return true;
 
-        if (b.coords().isEmpty()) return false;
+        if (!b.isPlaced()) return false;
 
-        int xmin = Integer.MAX_VALUE, xmax = Integer.MIN_VALUE;
-        int ymin = Integer.MAX_VALUE, ymax = Integer.MIN_VALUE;
-
-        for (City.Coordinates c : b.coords()) {
-            xmin = Math.min(xmin, c.x());
-            xmax = Math.max(xmax, c.x());
-            ymin = Math.min(ymin, c.y());
-            ymax = Math.max(ymax, c.y());
-        }
+        int xmin = b.x0(), xmax = b.x1() - 1;
+        int ymin = b.y0(), ymax = b.y1() - 1;
 
         int north = 0, south = 0, west = 0, east = 0;
 
-        for (City.Coordinates c : b.coords()) {
-            boolean isNorth = (c.y() == ymin);
-            boolean isSouth = (c.y() == ymax);
-            boolean isWest = (c.x() == xmin);
-            boolean isEast = (c.x() == xmax);
-
-            for (City.Coordinates n : city.neighbors4(c)) {
-                if (!connectedRoads.contains(n)) continue;
-
-                // same cell can have multiple side
-                if (isNorth) north++;
-                if (isSouth) south++;
-                if (isWest) west++;
-                if (isEast) east++;
+        for (int y = ymin; y <= ymax; y++) {
+            for (int x = xmin; x <= xmax; x++) {
+                boolean isNorth = (y == ymin);
+                boolean isSouth = (y == ymax);
+                boolean isWest = (x == xmin);
+                boolean isEast = (x == xmax);
+
+                int c = city.index(x, y);
+                for (int d = 0; d < 4; d++) {
+                    int n = city.neighbor(c, d);
+                    if (n < 0 || !city.isRoadConnected(n)) continue;
+
+                    // same cell can have multiple side
+                    if (isNorth) north++;
+                    if (isSouth) south++;
+                    if (isWest) west++;
+                    if (isEast) east++;
+                }
             }
         }
 
@@ -49,22 +47,29 @@ class ResidentialOptimizer {
         return north >= 2 || south >= 2 || west >= 2 || east >= 2;
     }
 
+    /**
+     * Whether a cell lies within the radius of a factory, widened by a margin.
+     */
+    static boolean nearFactory(City city, int x, int y, int margin) {
+        for (int k = 0; k < city.count(Building.Type.FACTORY); k++) {
+            Building f = city.building(Building.Type.FACTORY, k);
+            // distance to the nearest cell of the footprint
+            int dx = x < f.x0() ? f.x0() - x : Math.max(0, x - (f.x1() - 1));
+            int dy = y < f.y0() ? f.y0() - y : Math.max(0, y - (f.y1() - 1));
+            if (dx + dy <= f.chars().radius_x + margin) return true;
+        }
+        return false;
+    }
+
     /**
      * Local score for a residential building, to guide mutations
      *
      */
-    static double localScoreForResidence(
-            City city,
-            City.Coordinates r,
-            List<City.Coordinates> fireCells,
-            List<City.Coordinates> policeCells,
-            List<City.Coordinates> healthCells,
-            List<City.Coordinates> parkCells,
-            List<City.Coordinates> schoolCells,
-            List<City.Coordinates> trainCells,
-            List<City.Coordinates> factoryCells,
-            boolean connectedToEntry
-    ) {
+    static double localScoreForResidence(City city, City.Coordinates r, boolean connectedToEntry) {
+        return localScoreForResidence(city, city.index(r.x(), r.y()), connectedToEntry);
+    }
+
+    static double localScoreForResidence(City city, int i, boolean connectedToEntry) {
         double s = 0.0;
 
         if (!connectedToEntry) {
@@ -72,95 +77,29 @@ class ResidentialOptimizer {
             return s;
         }
 
-        boolean coveredFactory = false;
-        for (City.Coordinates sF : factoryCells) {
-            Building bt = city.coords_to_building.get(sF);
-            int radius = bt.chars().radius_x;
-            if (City.manhattan(r, sF) <= radius) {
-                coveredFactory = true;
-                break;
-            }
-        }
-        if (coveredFactory) s -= 3.0;
-
-        // fire
-        boolean coveredFire = false;
-        for (City.Coordinates sF : fireCells) {
-            Building bt = city.coords_to_building.get(sF);
-            int rx = bt.chars().radius_x, ry = bt.chars().radius_y;
-            int dx = Math.abs(r.x() - sF.x()), dy = Math.abs(r.y() - sF.y());
-            if (dx <= rx && dy <= ry) {
-                coveredFire = true;
-                break;
-            }
-        }
-        s += coveredFire ? 3.0 : -2.0;
-
-        // police
-        boolean coveredPolice = false;
-        for (City.Coordinates sP : policeCells) {
-            Building bt = city.coords_to_building.get(sP);
-            int rx = bt.chars().radius_x, ry = bt.chars().radius_y;
-            int dx = Math.abs(r.x() - sP.x()), dy = Math.abs(r.y() - sP.y());
-            if (dx <= rx && dy <= ry) {
-                coveredPolice = true;
-                break;
-            }
-        }
-        s += coveredPolice ? 3.0 : -2.0;
-
-        // train
-        boolean coveredTrain = false;
-        for (City.Coordinates sT : trainCells) {
-            Building bt = city.coords_to_building.get(sT);
-            int rx = bt.chars().radius_x, ry = bt.chars().radius_y;
-            int dx = Math.abs(r.x() - sT.x()), dy = Math.abs(r.y() - sT.y());
-            if (dx <= rx && dy <= ry) {
-                coveredTrain = true;
-                break;
-            }
-        }
-        s += coveredTrain ? 1.5 : -0.5;
-
-        // health
-        boolean coveredHealth = false;
-        for (City.Coordinates sH : healthCells) {
-            Building bt = city.coords_to_building.get(sH);
-            int rx = bt.chars().radius_x, ry = bt.chars().radius_y;
-            int dx = Math.abs(r.x() - sH.x()), dy = Math.abs(r.y() - sH.y());
-            if (dx <= rx && dy <= ry) {
-                coveredHealth = true;
-                break;
-            }
-        }
-        s += coveredHealth ? 3.0 : -2.0;
+        if (nearFactory(city, city.x(i), city.y(i), 0)) s -= 3.0;
+
+        // fire, police, train station and health coverage
+        s += city.isCovered(Building.Kind.FIRE, i) ? 3.0 : -2.0;
+        s += city.isCovered(Building.Kind.POLICE, i) ? 3.0 : -2.0;
+        s += city.isCovered(Building.Kind.TRANSIT, i) ? 1.5 : -0.5;
+        s += city.isCovered(Building.Kind.HEALTH, i) ? 3.0 : -2.0;
 
         // parc
-        if (!parkCells.isEmpty()) {
-            int dMin = Integer.MAX_VALUE;
-            for (City.Coordinates p : parkCells) {
-                dMin = Math.min(dMin, City.manhattan(r, p));
-            }
-            double bonus = 3.0 - 0.5 * dMin;
+        int dPark = city.distanceTo(Building.Type.PARK, i);
+        if (dPark != Integer.MAX_VALUE) {
+            double bonus = 3.0 - 0.5 * dPark;
             if (bonus > 0) s += bonus;
         }
 
         // schools
-        if (!schoolCells.isEmpty()) {
-            int dMin = Integer.MAX_VALUE;
-            for (City.Coordinates sS : schoolCells) {
-                dMin = Math.min(dMin, City.manhattan(r, sS));
-            }
-            if (dMin <= 5) s += 2.0;
-        }
+        int dSchool = city.distanceTo(Building.Type.SCHOOL, i);
+        if (dSchool != Integer.MAX_VALUE && dSchool <= 5) s += 2.0;
 
         // train distance
-        if (!trainCells.isEmpty()) {
-            int dMin = Integer.MAX_VALUE;
-            for (City.Coordinates t : trainCells) {
-                dMin = Math.min(dMin, City.manhattan(r, t));
-            }
-            double bonus = 2.0 - 0.3 * dMin;
+        int dTrain = city.distanceTo(Building.Type.RAILWAY_STATION, i);
+        if (dTrain != Integer.MAX_VALUE) {
+            double bonus = 2.0 - 0.3 * dTrain;
             if (bonus > 0) s += bonus;
         }
 
@@ -168,235 +107,179 @@ class ResidentialOptimizer {
     }
 
     static void connectAllResidencesWithRoads(City city) {
+        CellSearch search = new CellSearch(city.width * city.height);
         boolean changed = true;
 
         while (changed) {
             changed = false;
-            Set<City.Coordinates> connected = GameOptimizer.connectedRoads(city);
 
-            // distinct residential buildings
-            List<Building> resBuildings = city.coords_to_building.values().stream()
-                    .filter(b -> b.chars().type == Building.Type.RESIDENTIAL)
-                    .distinct()
-                    .toList();
+            List<Building> resBuildings = city.buildings(Building.Type.RESIDENTIAL);
 
             for (Building bRes : resBuildings) {
-                if (isResidentialBuildingWellConnected(bRes, city, connected)) {
+                if (isResidentialBuildingWellConnected(bRes, city)) {
                     continue;
                 }
 
                 // we take an external point for the BFS
-                City.Coordinates startFrom = bRes.coords().iterator().next();
-
-                Map<City.Coordinates, City.Coordinates> parent = new HashMap<>();
-                ArrayDeque<City.Coordinates> q = new ArrayDeque<>();
-                q.add(startFrom);
-                parent.put(startFrom, null);
+                int startFrom = city.index(bRes.x0(), bRes.y0());
+                search.reset();
+                search.visit(startFrom, -1);
 
-                City.Coordinates target = null;
+                int target = -1;
 
-                while (!q.isEmpty() && target == null) {
-                    City.Coordinates cur = q.removeFirst();
-                    for (City.Coordinates nb : city.neighbors4(cur)) {
-                        if (parent.containsKey(nb)) continue;
-                        Building b = city.coords_to_building.get(nb);
-                        if (b == null) continue;
+                while (!search.isEmpty() && target < 0) {
+                    int cur = search.poll();
+                    for (int d = 0; d < 4; d++) {
+                        int nb = city.neighbor(cur, d);
+                        if (nb < 0 || search.visited(nb)) continue;
 
-                        Building.Type t = b.chars().type;
+                        Building.Type t = city.typeAt(nb);
                         if (t != Building.Type.VOID && t != Building.Type.ROAD && t != Building.Type.CROSSING) continue;
 
-                        parent.put(nb, cur);
+                        search.visit(nb, cur);
 
-                        if (connected.contains(nb)) {
+                        if (city.isRoadConnected(nb)) {
                             target = nb;
                             break;
                         }
-                        q.addLast(nb);
                     }
                 }
 
-                if (target == null) {
+                if (target < 0) {
                     // no good path, we forsake the building
                     continue;
                 }
 
                 // go uproad and transform void into road cells
-                City.Coordinates cur = parent.get(target);
-                while (cur != null && !cur.equals(startFrom)) {
-                    Building b = city.coords_to_building.get(cur);
-                    if (b.chars().type == Building.Type.VOID) {
-                        city.setBuilding(cur, new Building(Building.Characteristics.ROAD));
+                int cur = search.parent(target);
+                while (cur >= 0 && cur != startFrom) {
+                    if (city.typeAt(cur) == Building.Type.VOID) {
+                        city.setBuilding(new City.Coordinates(city.x(cur), city.y(cur)),
+                                new Building(Building.Characteristics.ROAD));
                         changed = true;
                     }
-                    cur = parent.get(cur);
+                    cur = search.parent(cur);
                 }
             }
         }
     }
 
-    private static City.Coordinates findWorstResidence(City city) {
-        List<City.Coordinates> resCells = new ArrayList<>();
-        List<City.Coordinates> fireCells = new ArrayList<>();
-        List<City.Coordinates> policeCells = new ArrayList<>();
-        List<City.Coordinates> healthCells = new ArrayList<>();
-        List<City.Coordinates> parkCells = new ArrayList<>();
-        List<City.Coordinates> schoolCells = new ArrayList<>();
-        List<City.Coordinates> trainCells = new ArrayList<>();
-        List<City.Coordinates> factoryCells = new ArrayList<>();
-
-        Set<City.Coordinates> connectedRoads = GameOptimizer.connectedRoads(city);
-
-        GameOptimizer.fillCells(city, resCells, fireCells, policeCells, healthCells, parkCells, schoolCells, trainCells, factoryCells);
-
-        if (resCells.isEmpty()) return null;
-
-        // list of residential distinct buildings
-        Set<Building> resBuildings = new HashSet<>();
-        for (City.Coordinates r : resCells) {
-            resBuildings.add(city.coords_to_building.get(r));
-        }
-
-        Map<Building, Boolean> resConnected = new HashMap<>();
-        for (Building b : resBuildings) {
-            boolean ok = isResidentialBuildingWellConnected(b, city, connectedRoads);
-            resConnected.put(b, ok);
-        }
-
+    /**
+     * Residence of the editable area with the lowest local score, -1 when there is none.
+     */
+    private static int findWorstResidence(City city) {
+        City.Area area = city.editableArea();
         double worstScore = Double.POSITIVE_INFINITY;
-        City.Coordinates worst = null;
-
-        for (City.Coordinates r : resCells) {
-            Building bRes = city.coords_to_building.get(r);
-            boolean connectedToEntry = Boolean.TRUE.equals(resConnected.get(bRes));
-            double sLoc = localScoreForResidence(
-                    city,
-                    r,
-                    fireCells,
-                    policeCells,
-                    healthCells,
-                    parkCells,
-                    schoolCells,
-                    trainCells,
-                    factoryCells,
-                    connectedToEntry
-            );
-            if (sLoc < worstScore) {
-                worstScore = sLoc;
-                worst = r;
+        int worst = -1;
+
+        for (int y = area.y0(); y < area.y1(); y++) {
+            for (int x = area.x0(); x < area.x1(); x++) {
+                int i = city.index(x, y);
+                if (city.typeAt(i) != Building.Type.RESIDENTIAL) continue;
+                double sLoc = localScoreForResidence(city, i,
+                        isResidentialBuildingWellConnected(city.buildingById(city.idAt(i)), city));
+                if (sLoc < worstScore) {
+                    worstScore = sLoc;
+                    worst = i;
+                }
             }
         }
 
         return worst;
     }
 
-    static void improveWorstResidence(City city) {
-        City.Coordinates r = findWorstResidence(city);
-        if (r == null) return;
-
-        // candidats : voisinage de rayon 1 et 2 autour de la pire résidence
-        List<City.Coordinates> candidates = new ArrayList<>(city.neighbors4(r));
-        for (City.Coordinates c1 : city.neighbors4(r)) {
-            candidates.addAll(city.neighbors4(c1));
+    // types "utiles" localement pour améliorer la vie des habitants
+    private static final Building.Characteristics[] USEFUL = {
+            Building.Characteristics.SMALL_FOUNTAIN_PARK,
+            Building.Characteristics.SMALL_HEALTH_CLINIC,
+            Building.Characteristics.SMALL_POLICE_STATION,
+            Building.Characteristics.SMALL_FIRE_STATION,
+            Building.Characteristics.NURSERY_SCHOOL,
+            Building.Characteristics.SMALL_RAILWAY_STATION
+    };
+
+    static void improveWorstResidence(City city, RandomGenerator rnd) {
+        int r = findWorstResidence(city);
+        if (r < 0) return;
+
+        // candidats : voisinage de rayon 2 autour de la pire résidence, une case vide au hasard
+        int rx = city.x(r), ry = city.y(r);
+        int free = 0;
+        for (int dy = -2; dy <= 2; dy++) {
+            for (int dx = -2; dx <= 2; dx++) {
+                if (Math.abs(dx) + Math.abs(dy) <= 2 && isVoid(city, rx + dx, ry + dy)) free++;
+            }
         }
-
-        // dédoublonnage
-        LinkedHashSet<City.Coordinates> uniq = new LinkedHashSet<>(candidates);
-        List<City.Coordinates> list = new ArrayList<>(uniq);
-        Collections.shuffle(list, GameOptimizer.rnd);
-
-        // types "utiles" localement pour améliorer la vie des habitants
-        Building.Characteristics[] useful = new Building.Characteristics[]{
-                Building.Characteristics.SMALL_FOUNTAIN_PARK,
-                Building.Characteristics.SMALL_HEALTH_CLINIC,
-                Building.Characteristics.SMALL_POLICE_STATION,
-                Building.Characteristics.SMALL_FIRE_STATION,
-                Building.Characteristics.NURSERY_SCHOOL,
-                Building.Characteristics.SMALL_RAILWAY_STATION
-        };
-
-        for (City.Coordinates c : list) {
-            Building b = city.coords_to_building.get(c);
-            if (b == null) continue;
-
-            // only void to replace
-            if (b.chars().type == Building.Type.VOID) {
-                Building.Characteristics chosen = useful[GameOptimizer.rnd.nextInt(useful.length)];
-                city.setBuilding(c, new Building(chosen));
-                return;
+        // fallback : si pas de place, on ne fait rien
+        if (free == 0) return;
+
+        int pick = rnd.nextInt(free);
+        for (int dy = -2; dy <= 2; dy++) {
+            for (int dx = -2; dx <= 2; dx++) {
+                if (Math.abs(dx) + Math.abs(dy) <= 2 && isVoid(city, rx + dx, ry + dy) && pick-- == 0) {
+                    Building.Characteristics chosen = USEFUL[rnd.nextInt(USEFUL.length)];
+                    city.setBuilding(new City.Coordinates(rx + dx, ry + dy), new Building(chosen));
+                    return;
+                }
             }
         }
+    }
 
-        // fallback : si pas de place, on ne fait rien
+    private static boolean isVoid(City city, int x, int y) {
+        return city.inBounds(x, y) && city.typeAt(x, y) == Building.Type.VOID;
     }
 
     static void removeWorstResidenceIfReallyBad(City city) {
-        City.Coordinates worst = findWorstResidence(city);
-        if (worst == null) return;
-
-        Building bRes = city.buildingAt(worst);
-        if (bRes == null || bRes.chars().type != Building.Type.RESIDENTIAL) return;
-
-        List<City.Coordinates> resCells = new ArrayList<>();
-        List<City.Coordinates> fireCells = new ArrayList<>();
-        List<City.Coordinates> policeCells = new ArrayList<>();
-        List<City.Coordinates> healthCells = new ArrayList<>();
-        List<City.Coordinates> parkCells = new ArrayList<>();
-        List<City.Coordinates> schoolCells = new ArrayList<>();
-        List<City.Coordinates> trainCells = new ArrayList<>();
-        List<City.Coordinates> factoryCells = new ArrayList<>();
-
-        Set<City.Coordinates> connectedRoads = GameOptimizer.connectedRoads(city);
+        int worst = findWorstResidence(city);
+        if (worst < 0) return;
 
-        GameOptimizer.fillCells(city, resCells, fireCells, policeCells, healthCells, parkCells, schoolCells, trainCells, factoryCells);
-
-        boolean connectedToEntry = isResidentialBuildingWellConnected(bRes, city, connectedRoads);
-
-        double sLoc = localScoreForResidence(
-                city, worst,
-                fireCells, policeCells, healthCells, parkCells, schoolCells, trainCells, factoryCells,
-                connectedToEntry
-        );
+        Building bRes = city.buildingById(city.idAt(worst));
+        double sLoc = localScoreForResidence(city, worst, isResidentialBuildingWellConnected(bRes, city));
         if (sLoc < -30.0) {
             city.removeResidentialBuilding(bRes);
         }
     }
 
-    static boolean isTooCloseToFactory(City city, City.Coordinates c, List<City.Coordinates> factoryCells) {
-        for (City.Coordinates f : factoryCells) {
-            Building bf = city.coords_to_building.get(f);
-            int radius = bf.chars().radius_x;
-            if (City.manhattan(c, f) <= radius + 1) {
-                return true;
-            }
-        }
-        return false;
+    /**
+     * Places a residence on an empty cell next to a connected road of the editable area, away from the
+     * factories. The cell is drawn uniformly among all such road and neighbour pairs: they are counted, then
+     * walked to the chosen one, so nothing is collected. When the residence does not fit there, the pairs
+     * after it are tried in turn, then those before it.
+     */
+    static void tryAddResidentialNearRoad(City city, RandomGenerator rnd) {
+        int n = placeNearRoad(city, null, 0, Integer.MAX_VALUE);
+        if (n == 0) return;
+        int pick = rnd.nextInt(n);
+        Building res = new Building(Building.Characteristics.RESIDENTIAL);
+        if (placeNearRoad(city, res, pick, n) < 0) return;
+        placeNearRoad(city, res, 0, pick);
     }
 
-    static void tryAddResidentialNearRoad(City city) {
-        List<City.Coordinates> factoryCells = new ArrayList<>();
-        for (var e : city.coords_to_building.entrySet()) {
-            if (e.getValue().chars().type.getKind() == Building.Kind.FACTORY) {
-                factoryCells.add(e.getKey());
-            }
-        }
-
-        Set<City.Coordinates> connected = GameOptimizer.connectedRoads(city);
-        if (connected.isEmpty()) return;
-
-        List<City.Coordinates> roads = new ArrayList<>(connected);
-        Collections.shuffle(roads, GameOptimizer.rnd);
-
-        for (City.Coordinates road : roads) {
-            for (City.Coordinates n : city.neighbors4(road)) {
-                Building b = city.coords_to_building.get(n);
-                if (b == null) continue;
-                if (b.chars().type != Building.Type.VOID) continue;
-                if (isTooCloseToFactory(city, n, factoryCells)) continue;
-
-                Building res = new Building(Building.Characteristics.RESIDENTIAL);
-                boolean ok = city.setBuilding(n, res);
-                if (ok) return;
+    /**
+     * Walks the pairs of a connected road of the editable area and an empty neighbour that is not near a
+     * factory, in row-major order then direction order, and tries to place the residence on the neighbour
+     * of the pairs numbered [from, to). Without a residence, only counts the pairs.
+     *
+     * @return -1 once the residence is placed, the number of pairs walked otherwise
+     */
+    private static int placeNearRoad(City city, Building res, int from, int to) {
+        City.Area area = city.editableArea();
+        int k = 0;
+        for (int y = area.y0(); y < area.y1(); y++) {
+            for (int x = area.x0(); x < area.x1(); x++) {
+                int c = city.index(x, y);
+                if (!city.isRoadConnected(c)) continue;
+                for (int d = 0; d < 4; d++) {
+                    int nb = city.neighbor(c, d);
+                    if (nb < 0 || city.typeAt(nb) != Building.Type.VOID) continue;
+                    int nx = city.x(nb), ny = city.y(nb);
+                    if (nearFactory(city, nx, ny, 1)) continue;
+                    if (k >= to) return k;
+                    if (res != null && k >= from && city.setBuilding(new City.Coordinates(nx, ny), res)) return -1;
+                    k++;
+                }
             }
         }
+        return k;
     }
 }
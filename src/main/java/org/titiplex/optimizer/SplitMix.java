@@ -0,0 +1,52 @@
+package org.titiplex.optimizer;
+
+import java.util.random.RandomGenerator;
+
+/**
+ * The SplitMix64 generator of {@link java.util.SplittableRandom}, step for step, with its state exposed so
+ * that a run can be checkpointed and resumed on the same stream. A generator draws the same values as a
+ * SplittableRandom of the same seed: {@link #nextInt()} and {@link #nextLong()} are the same mixes of the
+ * same sequence, and every other draw derives from them through the defaults of {@link RandomGenerator}.
+ */
+final class SplitMix implements RandomGenerator {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long seed;
+    private final long gamma;
+
+    SplitMix(long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    /**
+     * A generator resuming from a state read with {@link #seed()} and {@link #gamma()}.
+     */
+    SplitMix(long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    long seed() {
+        return seed;
+    }
+
+    long gamma() {
+        return gamma;
+    }
+
+    @Override
+    public int nextInt() {
+        long z = seed += gamma;
+        z = (z ^ (z >>> 33)) * 0x62a9d9ed799705f5L;
+        return (int) (((z ^ (z >>> 28)) * 0xcb24d0a5c88c35b3L) >>> 32);
+    }
+
+    @Override
+    public long nextLong() {
+        long z = seed += gamma;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,178 @@
+package org.titiplex.optimizer;
+
+import org.titiplex.city.Building;
+import org.titiplex.city.City;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Domain decomposition for large maps: the map is cut into square tiles annealed in parallel, each one
+ * on its own copy of the city where only the tile can change and the rest of the map is frozen context,
+ * see {@link City#restrictEdits(City.Area)}. Mutations then only search the tile, so an iteration costs
+ * about the same whatever the size of the map.
+ * <p>
+ * After each of the {@link #PASSES} passes, the tiles are merged back into the city one at a time, and a
+ * tile whose changes lower the score of the whole city is dropped. Passes alternate between two tilings
+ * offset by half a tile, so the boundary zones of a pass lie inside the tiles of the next.
+ * <p>
+ * The start cell is never edited and the main road crosses every tiling, so the road network stays
+ * rooted at the start. Each tile draws from a generator split from the run's in tile order, and tiles
+ * are merged in that order, so a run is reproducible for a given seed whatever the thread scheduling.
+ */
+class TiledOptimizer {
+
+    static final int PASSES = 4;
+
+    private final Optimizer.Config config;
+    private final SplittableRandom rnd;
+    private final City city;
+    private final OptimizerMetrics metrics;
+
+    TiledOptimizer(Optimizer.Config config, SplittableRandom rnd, OptimizerMetrics metrics) {
+        this.config = config;
+        this.metrics = metrics;
+        this.city = City.randomInitialCity(config.width(), config.height(), rnd.split());
+        this.rnd = rnd.split();
+    }
+
+    Optimizer.Result run(Optimizer.Listener listener) {
+        int iterations = config.iterations();
+        DeltaEvaluator evaluator = new DeltaEvaluator(city);
+        double score = evaluator.score();
+
+        List<City.Area> first = tiles(0), second = tiles(config.tileSize() / 2);
+        int threads = Math.min(Math.max(first.size(), second.size()), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int pass = 0; pass < PASSES; pass++) {
+                int from = (int) ((long) iterations * pass / PASSES);
+                int to = (int) ((long) iterations * (pass + 1) / PASSES);
+                if (from == to) continue;
+
+                // tiles start from snapshots taken here, the city is only read while they run
+                List<City.Area> tiles = pass % 2 == 0 ? first : second;
+                List<Callable<City>> tasks = new ArrayList<>(tiles.size());
+                for (City.Area area : tiles) {
+                    City tile = city.snapshot();
+                    SplittableRandom tileRnd = rnd.split();
+                    tasks.add(() -> anneal(tile, area, from, to, tileRnd));
+                }
+                List<Future<City>> annealed = pool.invokeAll(tasks);
+
+                double before = score;
+                for (int k = 0; k < tiles.size(); k++) {
+                    city.beginChanges();
+                    merge(annealed.get(k).get(), tiles.get(k));
+                    double sNew = evaluator.evaluate(city);
+                    if (sNew >= score) {
+                        evaluator.accept();
+                        city.commitChanges();
+                        score = sNew;
+                    } else {
+                        city.rollbackChanges();
+                    }
+                }
+                if (score > before) listener.improved(city, score);
+                listener.progress(to, iterations);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Tiled optimization interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Tile failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return new Optimizer.Result(city, score);
+    }
+
+    /**
+     * Tiles covering the map, cut at the given offset then every tile size along both axes.
+     */
+    List<City.Area> tiles(int offset) {
+        List<Integer> xs = cuts(offset, config.width()), ys = cuts(offset, config.height());
+        List<City.Area> tiles = new ArrayList<>();
+        for (int j = 0; j + 1 < ys.size(); j++) {
+            for (int i = 0; i + 1 < xs.size(); i++) {
+                tiles.add(new City.Area(xs.get(i), ys.get(j), xs.get(i + 1), ys.get(j + 1)));
+            }
+        }
+        return tiles;
+    }
+
+    private List<Integer> cuts(int offset, int length) {
+        List<Integer> cuts = new ArrayList<>();
+        cuts.add(0);
+        for (int c = offset > 0 ? offset : config.tileSize(); c < length; c += config.tileSize()) {
+            cuts.add(c);
+        }
+        cuts.add(length);
+        return cuts;
+    }
+
+    private City anneal(City tile, City.Area area, int from, int to, SplittableRandom rnd) {
+        tile.restrictEdits(area);
+        DeltaEvaluator evaluator = new DeltaEvaluator(tile);
+        double score = evaluator.score();
+        MutationScheduler scheduler = MutationScheduler.of(config);
+
+        try (OptimizerMetrics.Recorder recorder = metrics.recorder()) {
+            for (int it = from; it < to; it++) {
+                double T = config.temperature(it);
+                tile.beginChanges();
+                long t0 = System.nanoTime();
+                Mutation m = scheduler.mutate(tile, rnd);
+                long t1 = System.nanoTime();
+                double sNew = evaluator.evaluate(tile);
+                long t2 = System.nanoTime();
+
+                boolean accepted = GameOptimizer.accept(sNew - score, T, rnd);
+                recorder.proposal(m, t1 - t0, t2 - t1, accepted, sNew > score);
+                scheduler.reward(m, t2 - t0, sNew - score);
+                if (accepted) {
+                    evaluator.accept();
+                    tile.commitChanges();
+                    score = sNew;
+                } else {
+                    tile.rollbackChanges();
+                }
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Replaces the buildings of the city lying in the area with those of the annealed tile.
+     */
+    private void merge(City tile, City.Area area) {
+        city.restrictEdits(area);
+        for (Building b : city.buildings()) {
+            if (city.isEditable(b) && !b.covers(city.start.x(), city.start.y())) {
+                city.rmBuilding(new City.Coordinates(b.x0(), b.y0()));
+            }
+        }
+        for (Building b : tile.buildings()) {
+            if (tile.isEditable(b) && isFree(b)) {
+                city.restoreBuilding(b.copy());
+            }
+        }
+        city.restrictEdits(null);
+    }
+
+    // false for a tile building over a cell the city kept, like the start cell
+    private boolean isFree(Building b) {
+        for (int y = b.y0(); y < b.y1(); y++) {
+            for (int x = b.x0(); x < b.x1(); x++) {
+                if (city.idAt(city.index(x, y)) != 0) return false;
+            }
+        }
+        return true;
+    }
+}
@@ -2,7 +2,17 @@ package org.titiplex.city;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -67,6 +77,371 @@ public class CityTest {
         assertNotSame(city, c);
     }
 
+    @Test
+    public void rmBuildingClearsWholeFootprint() {
+        City big = new City(6, 6);
+        var c = new City.Coordinates(1, 0);
+        assertTrue(big.setBuilding(c, new Building(Building.Characteristics.BASIC_HEALTH_CLINIC)));
+        Building b = big.buildingAt(c);
+        assertEquals(4, b.coords().size());
+        for (var t : b.coords()) assertSame(b, big.buildingAt(t));
+
+        big.rmBuilding(new City.Coordinates(2, 1));
+        for (var t : b.coords()) assertFalse(big.hasBuilding(t));
+        assertEquals(1, big.buildings().size());
+    }
+
+    @Test
+    public void deepCopyIsIndependent() {
+        City big = new City(6, 6);
+        var c = new City.Coordinates(1, 0);
+        big.setBuilding(c, new Building(Building.Characteristics.RESIDENTIAL));
+        City copy = big.deepCopy();
+        assertEquals(big, copy);
+        assertNotSame(big.buildingAt(c), copy.buildingAt(c));
+
+        copy.rmBuilding(c);
+        assertTrue(big.hasBuilding(c));
+        assertFalse(copy.hasBuilding(c));
+        assertNotEquals(big, copy);
+    }
+
+    @Test
+    public void snapshotsAreCopyOnWrite() {
+        // several pages per grid
+        City big = new City(40, 40);
+        big.setBuilding(new City.Coordinates(5, 5), new Building(Building.Characteristics.SMALL_FIRE_STATION));
+        big.setBuilding(new City.Coordinates(30, 30), new Building(Building.Characteristics.SMALL_FOUNTAIN_PARK));
+        City snap = big.snapshot();
+        assertEquals(big, snap);
+        assertSame(big.buildingAt(5, 5), snap.buildingAt(5, 5));
+
+        // the snapshot keeps its state whatever the city does, and the other way round
+        var road = new City.Coordinates(10, 19);
+        big.setBuilding(road, new Building(Building.Characteristics.ROAD));
+        big.rmBuilding(new City.Coordinates(30, 30));
+        snap.rmBuilding(new City.Coordinates(5, 5));
+        snap.setBuilding(new City.Coordinates(35, 2), new Building(Building.Characteristics.SMALL_RAILWAY_STATION));
+
+        int station = big.index(5, 5), stationView = big.index(6, 6);
+        assertEquals(Building.Type.FIRE_STATION, big.typeAt(station));
+        assertTrue(big.isCovered(Building.Kind.FIRE, stationView));
+        assertEquals(Integer.MAX_VALUE, big.distanceTo(Building.Type.PARK, station));
+        assertTrue(big.isRoadConnected(big.index(10, 19)));
+        assertEquals(0, big.count(Building.Type.RAILWAY_STATION));
+
+        assertEquals(Building.Type.VOID, snap.typeAt(station));
+        assertFalse(snap.isCovered(Building.Kind.FIRE, stationView));
+        assertEquals(Building.Type.PARK, snap.typeAt(30, 30));
+        assertFalse(snap.isRoadConnected(snap.index(10, 19)));
+        assertTrue(snap.stationCellsWithoutRail() > 0);
+        assertEquals(0, big.stationCellsWithoutRail());
+        assertEquals(2, big.count(Building.Type.ROAD));
+        assertEquals(1, snap.count(Building.Type.ROAD));
+
+        // a placed building, shared by snapshots, cannot be placed again
+        assertFalse(snap.setBuilding(new City.Coordinates(20, 2), big.buildingAt(road)));
+    }
+
+    @Test
+    public void restoreBuildingChecksItsFootprint() {
+        City city = new City(10, 10);
+        Building school = new Building(Building.Characteristics.GRADE_SCHOOL);
+        assertThrows(IllegalArgumentException.class, () -> city.restoreBuilding(school));
+        assertTrue(city.setBuilding(new City.Coordinates(1, 1), school));
+        City.Coordinates corner = new City.Coordinates(school.x0(), school.y0());
+        assertThrows(IllegalArgumentException.class, () -> city.restoreBuilding(school.copy()));
+
+        city.rmBuilding(corner);
+        city.restrictEdits(new City.Area(0, 0, 2, 2));
+        assertThrows(IllegalArgumentException.class, () -> city.restoreBuilding(school));
+        city.restrictEdits(null);
+        assertThrows(IllegalArgumentException.class,
+                () -> city.restoreBuilding(new Building(Building.Characteristics.GRADE_SCHOOL, new City.Area(8, 8, 11, 10))));
+        city.restoreBuilding(school);
+        assertSame(school, city.buildingAt(corner));
+    }
+
+    @Test
+    public void stateRoundTrip() throws IOException {
+        City a = City.randomInitialCity(30, 30, new Random(8));
+        a.rmBuilding(a.buildings(Building.Type.RESIDENTIAL).get(0).footprint().coordinates(0));
+        var bytes = new ByteArrayOutputStream();
+        a.writeState(new DataOutputStream(bytes));
+        City b = City.readState(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertEquals(a, b);
+        assertEquals(a.buildings().stream().map(Building::footprint).toList(),
+                b.buildings().stream().map(Building::footprint).toList());
+
+        // both cities go on the same way, down to the order of their indexes
+        Random ra = new Random(9), rb = new Random(9);
+        for (int i = 0; i < 200; i++) {
+            edit(a, ra);
+            edit(b, rb);
+        }
+        assertEquals(a, b);
+        assertEquals(a.roadConnectedCount(), b.roadConnectedCount());
+        assertEquals(a.orphanRailCount(), b.orphanRailCount());
+        for (Building.Type t : Building.Type.values()) {
+            for (int k = 0; k < a.count(t); k++) {
+                assertEquals(a.building(t, k).footprint(), b.building(t, k).footprint());
+            }
+        }
+        Building sa = a.leastUsefulService(), sb = b.leastUsefulService();
+        assertEquals(sa == null ? null : sa.footprint(), sb == null ? null : sb.footprint());
+
+        a.beginChanges();
+        assertThrows(IllegalStateException.class, () -> a.writeState(new DataOutputStream(new ByteArrayOutputStream())));
+    }
+
+    @Test
+    public void layoutFileRoundTrip(@TempDir Path dir) throws IOException {
+        List<City> cities = new ArrayList<>();
+        Random rnd = new Random(10);
+        for (int i = 0; i < 5; i++) {
+            City c = City.randomInitialCity(12 + i, 10 + 2 * i, rnd);
+            for (int k = 0; k < 50; k++) edit(c, rnd);
+            cities.add(c);
+        }
+
+        Path file = dir.resolve("cities.bin");
+        try (CityFile.Writer writer = new CityFile.Writer(file)) {
+            for (City c : cities) writer.append(c);
+            assertEquals(5, writer.count());
+        }
+        try (CityFile.Reader reader = CityFile.open(file)) {
+            assertEquals(cities.size(), reader.size());
+            // backwards, records are read independently
+            for (int k = cities.size() - 1; k >= 0; k--) {
+                City read = reader.read(k);
+                assertEquals(cities.get(k), read);
+                assertEquals(cities.get(k).count(Building.Type.RESIDENTIAL), read.count(Building.Type.RESIDENTIAL));
+                assertEquals(cities.get(k).roadConnectedCount(), read.roadConnectedCount());
+            }
+        }
+
+        // a cell id that disagrees with the footprints is refused
+        City c = cities.get(0);
+        ByteBuffer record = ByteBuffer.allocate(CityFile.size(c));
+        CityFile.write(c, record);
+        int last = record.limit() - 2;
+        record.putChar(last, (char) (record.getChar(last) + 1));
+        record.flip();
+        assertThrows(IllegalArgumentException.class, () -> CityFile.read(record));
+    }
+
+    private static void edit(City city, Random rnd) {
+        var c = new City.Coordinates(rnd.nextInt(city.width), rnd.nextInt(city.height));
+        if (city.hasBuilding(c)) {
+            city.rmBuilding(c);
+        } else {
+            var chars = Building.Characteristics.values();
+            city.setBuilding(c, new Building(chars[rnd.nextInt(chars.length)]));
+        }
+    }
+
+    @Test
+    public void rollbackChanges() {
+        City big = new City(6, 6);
+        var c = new City.Coordinates(1, 0);
+        big.setBuilding(c, new Building(Building.Characteristics.RESIDENTIAL));
+        City before = big.deepCopy();
+
+        big.beginChanges();
+        big.rmBuilding(c);
+        big.setBuilding(new City.Coordinates(4, 4), new Building(Building.Characteristics.SMALL_FOUNTAIN_PARK));
+        big.setBuilding(c, new Building(Building.Characteristics.BASIC_POLICE_STATION));
+        assertTrue(big.changeCount() > 0);
+        big.rollbackChanges();
+
+        assertEquals(before, big);
+        assertEquals(Building.Characteristics.RESIDENTIAL, big.buildingAt(c).chars());
+        assertEquals(before.buildings().size(), big.buildings().size());
+    }
+
+    @Test
+    public void coverageFollowsPlacementAndRollback() {
+        City big = new City(30, 30);
+        var station = new City.Coordinates(10, 10);
+        int near = big.index(12, 12), far = big.index(25, 25);
+        assertFalse(big.isCovered(Building.Kind.FIRE, near));
+
+        big.setBuilding(station, new Building(Building.Characteristics.SMALL_FIRE_STATION));
+        assertTrue(big.isCovered(Building.Kind.FIRE, near));
+        assertFalse(big.isCovered(Building.Kind.FIRE, far));
+        assertFalse(big.isCovered(Building.Kind.POLICE, near));
+
+        // a large radius goes through the difference array
+        big.setBuilding(new City.Coordinates(20, 20), new Building(Building.Characteristics.DELUXE_FIRE_STATION));
+        assertEquals(2, big.coverage(Building.Kind.FIRE, near));
+        assertTrue(big.isCovered(Building.Kind.FIRE, far));
+
+        big.beginChanges();
+        big.rmBuilding(station);
+        assertEquals(1, big.coverage(Building.Kind.FIRE, near));
+        big.rollbackChanges();
+        assertEquals(2, big.coverage(Building.Kind.FIRE, near));
+    }
+
+    @Test
+    public void distanceToNearestFacility() {
+        City big = new City(20, 20);
+        int cell = big.index(0, 0);
+        assertEquals(Integer.MAX_VALUE, big.distanceTo(Building.Type.PARK, cell));
+
+        var far = new City.Coordinates(15, 15);
+        big.setBuilding(far, new Building(Building.Characteristics.SMALL_FOUNTAIN_PARK));
+        assertEquals(30, big.distanceTo(Building.Type.PARK, cell));
+
+        var near = new City.Coordinates(2, 3);
+        big.setBuilding(near, new Building(Building.Characteristics.SMALL_FOUNTAIN_PARK));
+        assertEquals(5, big.distanceTo(Building.Type.PARK, cell));
+        assertEquals(Integer.MAX_VALUE, big.distanceTo(Building.Type.SCHOOL, cell));
+
+        big.beginChanges();
+        big.rmBuilding(near);
+        assertEquals(30, big.distanceTo(Building.Type.PARK, cell));
+        big.rollbackChanges();
+        assertEquals(5, big.distanceTo(Building.Type.PARK, cell));
+    }
+
+    @Test
+    public void roadConnectivityFollowsEdits() {
+        Random rnd = new Random(3L);
+        City big = City.randomInitialCity(16, 16, rnd);
+        for (int step = 0; step < 400; step++) {
+            big.beginChanges();
+            for (int k = 0; k < 3; k++) {
+                var c = new City.Coordinates(rnd.nextInt(16), rnd.nextInt(16));
+                if (big.hasBuilding(c)) big.rmBuilding(c);
+                else big.setBuilding(c, new Building(rnd.nextInt(4) == 0
+                        ? Building.Characteristics.CROSSING : Building.Characteristics.ROAD));
+            }
+            if (rnd.nextBoolean()) big.rollbackChanges();
+            else big.commitChanges();
+
+            boolean[] expected = traverseRoads(big);
+            int count = 0;
+            for (int i = 0; i < expected.length; i++) {
+                assertEquals(expected[i], big.isRoadConnected(i), "cell " + i + " at step " + step);
+                if (expected[i]) count++;
+            }
+            assertEquals(count, big.roadConnectedCount());
+        }
+    }
+
+    @Test
+    public void railNetworkFollowsEdits() {
+        Random rnd = new Random(5L);
+        City big = new City(16, 16);
+        var kinds = new Building.Characteristics[]{Building.Characteristics.RAIL, Building.Characteristics.RAIL,
+                Building.Characteristics.CROSSING, Building.Characteristics.SMALL_RAILWAY_STATION};
+        for (int step = 0; step < 400; step++) {
+            big.beginChanges();
+            for (int k = 0; k < 3; k++) {
+                var c = new City.Coordinates(rnd.nextInt(16), rnd.nextInt(16));
+                if (big.hasBuilding(c)) big.rmBuilding(c);
+                else big.setBuilding(c, new Building(kinds[rnd.nextInt(kinds.length)]));
+            }
+            if (rnd.nextBoolean()) big.rollbackChanges();
+            else big.commitChanges();
+
+            boolean[] linked = traverseRails(big);
+            int orphans = 0, bare = 0;
+            for (int i = 0; i < linked.length; i++) {
+                assertEquals(linked[i], big.isRailLinkedToStation(i), "cell " + i + " at step " + step);
+                Building.Type t = big.typeAt(i);
+                if (t == Building.Type.RAIL && !linked[i]) orphans++;
+                if (t == Building.Type.RAILWAY_STATION && big.neighbors4(new City.Coordinates(i % 16, i / 16)).stream()
+                        .map(n -> big.typeAt(n.x(), n.y()))
+                        .noneMatch(n -> n == Building.Type.RAIL || n == Building.Type.CROSSING)) bare++;
+            }
+            assertEquals(orphans, big.orphanRailCount());
+            assertEquals(bare, big.stationCellsWithoutRail());
+        }
+    }
+
+    @Test
+    public void residenceCountsFollowEdits() {
+        Random rnd = new Random(7L);
+        City big = new City(20, 20);
+        var kinds = new Building.Characteristics[]{Building.Characteristics.RESIDENTIAL, Building.Characteristics.RESIDENTIAL,
+                Building.Characteristics.SMALL_FIRE_STATION, Building.Characteristics.SMALL_FOUNTAIN_PARK,
+                Building.Characteristics.BASIC_POLICE_STATION};
+        for (int step = 0; step < 300; step++) {
+            big.beginChanges();
+            for (int k = 0; k < 3; k++) {
+                var c = new City.Coordinates(rnd.nextInt(20), rnd.nextInt(20));
+                if (big.hasBuilding(c)) big.rmBuilding(c);
+                else big.setBuilding(c, new Building(kinds[rnd.nextInt(kinds.length)]));
+            }
+            if (rnd.nextBoolean()) big.rollbackChanges();
+            else big.commitChanges();
+
+            var area = new City.Area(rnd.nextInt(10), rnd.nextInt(10), 10 + rnd.nextInt(11), 10 + rnd.nextInt(11));
+            int inArea = 0;
+            for (int k = 0; k < area.size(); k++) {
+                var c = area.coordinates(k);
+                if (big.typeAt(c.x(), c.y()) == Building.Type.RESIDENTIAL) inArea++;
+            }
+            assertEquals(inArea, big.countCells(Building.Type.RESIDENTIAL, area), "step " + step);
+
+            // the least useful service has the fewest residences in reach
+            int fewest = Integer.MAX_VALUE;
+            for (Building b : big.buildings()) {
+                if (b.chars().type == Building.Type.RESIDENTIAL || b.chars().type == Building.Type.ROAD) continue;
+                int reach = 0;
+                for (int i = 0; i < 400; i++) {
+                    if (big.typeAt(i) == Building.Type.RESIDENTIAL && Math.abs(i % 20 - b.x0()) <= b.chars().radius_x
+                            && Math.abs(i / 20 - b.y0()) <= b.chars().radius_y) reach++;
+                }
+                assertEquals(reach, big.residencesInReach(b));
+                fewest = Math.min(fewest, reach);
+            }
+            Building least = big.leastUsefulService();
+            if (least == null) assertEquals(Integer.MAX_VALUE, fewest);
+            else assertEquals(fewest, big.residencesInReach(least));
+        }
+    }
+
+    private static boolean[] traverseRails(City city) {
+        boolean[] seen = new boolean[city.width * city.height];
+        var queue = new ArrayDeque<City.Coordinates>();
+        for (int i = 0; i < seen.length; i++) {
+            if (city.typeAt(i) != Building.Type.RAILWAY_STATION) continue;
+            seen[i] = true;
+            queue.add(new City.Coordinates(i % city.width, i / city.width));
+        }
+        while (!queue.isEmpty()) {
+            for (var n : city.neighbors4(queue.poll())) {
+                int i = city.index(n.x(), n.y());
+                Building.Type t = city.typeAt(i);
+                if (seen[i] || (t != Building.Type.RAIL && t != Building.Type.CROSSING
+                        && t != Building.Type.RAILWAY_STATION)) continue;
+                seen[i] = true;
+                queue.add(n);
+            }
+        }
+        return seen;
+    }
+
+    private static boolean[] traverseRoads(City city) {
+        boolean[] seen = new boolean[city.width * city.height];
+        var queue = new ArrayDeque<City.Coordinates>();
+        seen[city.index(city.start.x(), city.start.y())] = true;
+        queue.add(city.start);
+        while (!queue.isEmpty()) {
+            for (var n : city.neighbors4(queue.poll())) {
+                int i = city.index(n.x(), n.y());
+                Building.Type t = city.typeAt(i);
+                if (seen[i] || (t != Building.Type.ROAD && t != Building.Type.CROSSING)) continue;
+                seen[i] = true;
+                queue.add(n);
+            }
+        }
+        return seen;
+    }
+
     @Test
     public void randomInitialCity() {
         var rCity = City.randomInitialCity(3, 3, new Random(0L));
@@ -88,4 +463,153 @@ public class CityTest {
         assertTrue(coords.contains(new City.Coordinates(2, 1)));
         assertTrue(coords.contains(new City.Coordinates(2, 2)));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void restrictedEdits() {
+        City big = new City(8, 8);
+        big.restrictEdits(new City.Area(0, 0, 4, 4));
+
+        // footprints must fit in the area: a 2x2 clinic at (3, 0) can only grow west
+        var clinic = new Building(Building.Characteristics.BASIC_HEALTH_CLINIC);
+        assertTrue(big.setBuilding(new City.Coordinates(3, 0), clinic));
+        assertTrue(big.isEditable(clinic));
+        assertFalse(big.setBuilding(new City.Coordinates(5, 0), new Building(Building.Characteristics.SMALL_FOUNTAIN_PARK)));
+
+        // the main road leaves the area and stays
+        big.rmBuilding(new City.Coordinates(2, 4));
+        assertEquals(Building.Type.ROAD, big.typeAt(2, 4));
+
+        big.rmBuilding(new City.Coordinates(3, 0));
+        assertEquals(Building.Type.VOID, big.typeAt(3, 0));
+
+        big.restrictEdits(null);
+        assertTrue(big.setBuilding(new City.Coordinates(5, 0), new Building(Building.Characteristics.SMALL_FOUNTAIN_PARK)));
+        assertEquals(new City.Area(0, 0, 8, 8), big.editableArea());
+    }
+
+    @Test
+    public void buildingFootprint() {
+        City big = new City(8, 8);
+        // no room south-east of (7, 7): the school grows north-west
+        var school = new Building(Building.Characteristics.GRADE_SCHOOL);
+        assertNull(school.footprint());
+        assertTrue(big.setBuilding(new City.Coordinates(7, 7), school));
+        assertEquals(new City.Area(5, 6, 8, 8), school.footprint());
+        assertEquals(6, school.coords().size());
+        assertTrue(school.coords().contains(new City.Coordinates(5, 6)));
+        assertFalse(school.coords().contains(new City.Coordinates(4, 6)));
+
+        // identity equality, content comparison on demand
+        var copy = school.copy();
+        assertNotEquals(school, copy);
+        assertTrue(Building.sameFootprint(school, copy));
+        assertSame(Building.VOID, big.buildingAt(new City.Coordinates(0, 0)));
+        assertEquals(big, big.deepCopy());
+    }
+
+    @Test
+    public void buildingCountsFollowEdits() {
+        City big = new City(10, 10);
+        assertEquals(1, big.count(Building.Type.ROAD));
+        assertEquals(1.0, big.totalCost());
+
+        big.beginChanges();
+        big.setBuilding(new City.Coordinates(1, 1), new Building(Building.Characteristics.SMALL_FIRE_STATION));
+        big.setBuilding(new City.Coordinates(3, 1), new Building(Building.Characteristics.BASIC_FIRE_STATION));
+        big.setBuilding(new City.Coordinates(6, 1), new Building(Building.Characteristics.SMALL_POLICE_STATION));
+        assertEquals(2, big.count(Building.Type.FIRE_STATION));
+        assertEquals(3, big.count(Building.Kind.FIRE) + big.count(Building.Kind.POLICE));
+        assertEquals(1.0 + 80 + 150 + 80, big.totalCost());
+
+        big.rmBuilding(new City.Coordinates(1, 1));
+        assertEquals(1, big.buildings(Building.Type.FIRE_STATION).size());
+        assertSame(big.buildingAt(new City.Coordinates(3, 1)), big.buildings(Building.Type.FIRE_STATION).get(0));
+
+        big.rollbackChanges();
+        assertEquals(0, big.count(Building.Type.FIRE_STATION));
+        assertEquals(0, big.count(Building.Type.POLICE_STATION));
+        assertEquals(1.0, big.totalCost());
+        assertEquals(big.buildings().size(), big.count(Building.Type.ROAD));
+    }
+
+    @Test
+    public void serviceReachFollowsEdits() {
+        City city = new City(40, 40);
+        Random rnd = new Random(11);
+        for (int round = 0; round < 60; round++) {
+            city.beginChanges();
+            for (int e = 0; e < 20; e++) edit(city, rnd);
+            if (round % 3 == 0) city.rollbackChanges();
+            else city.commitChanges();
+            if (round % 10 == 0) city = city.snapshot();
+
+            int least = Integer.MAX_VALUE;
+            for (Building.Type t : Building.Type.SERVICES) {
+                for (Building b : city.buildings(t)) least = Math.min(least, city.residencesInReach(b));
+            }
+            Building top = city.leastUsefulService();
+            assertEquals(least, top == null ? Integer.MAX_VALUE : city.residencesInReach(top));
+        }
+    }
+
+    @Test
+    public void serviceReachKernelsAgree() {
+        // KERNEL is the vector kernel in builds with the vector profile, and the scalar one otherwise
+        Random rnd = new Random(3);
+        int n = 75;
+        int[] x0 = new int[n], y0 = new int[n], rx = new int[n], ry = new int[n], ids = new int[n];
+        for (int k = 0; k < n; k++) {
+            x0[k] = rnd.nextInt(64);
+            y0[k] = rnd.nextInt(64);
+            rx[k] = rnd.nextInt(12);
+            ry[k] = rnd.nextInt(12);
+            ids[k] = k + 1;
+        }
+        int[] expected = new int[n], actual = new int[n];
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                // every prefix length, so that the vector loop ends at every lane
+                int m = (x + 64 * y) % (n + 1);
+                int found = ServiceBoxes.SCALAR.inReach(x, y, x0, y0, rx, ry, ids, m, expected);
+                assertEquals(found, ServiceBoxes.KERNEL.inReach(x, y, x0, y0, rx, ry, ids, m, actual));
+                for (int k = 0; k < found; k++) assertEquals(expected[k], actual[k]);
+            }
+        }
+    }
+
+    @Test
+    public void neighborIndexes() {
+        City small = new City(4, 3);
+        int corner = small.index(0, 0);
+        assertEquals(small.index(1, 0), small.neighbor(corner, 0));
+        assertEquals(-1, small.neighbor(corner, 1));
+        assertEquals(small.index(0, 1), small.neighbor(corner, 2));
+        assertEquals(-1, small.neighbor(corner, 3));
+        int last = small.index(3, 2);
+        assertEquals(-1, small.neighbor(last, 0));
+        assertEquals(-1, small.neighbor(last, 2));
+        assertEquals(3, small.x(last));
+        assertEquals(2, small.y(last));
+
+        // a search over the whole grid, twice on the same scratch space
+        CellSearch search = new CellSearch(small.getWidth() * small.getHeight());
+        for (int run = 0; run < 2; run++) {
+            search.reset();
+            assertFalse(search.visited(corner));
+            search.visit(corner, -1);
+            int seen = 0;
+            while (!search.isEmpty()) {
+                int c = search.poll();
+                seen++;
+                for (int d = 0; d < 4; d++) {
+                    int n = small.neighbor(c, d);
+                    if (n >= 0) search.visit(n, c);
+                }
+            }
+            assertEquals(12, seen);
+            assertEquals(-1, search.parent(corner));
+            int p = search.parent(last);
+            assertTrue(p == small.index(2, 2) || p == small.index(3, 1));
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package org.titiplex.optimizer;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchOptimizerTest {
+
+    @Test
+    public void streamsEveryJobOnce() {
+        List<Optimizer.Config> jobs = List.of(
+                Optimizer.Config.of(12, 12, 200, 1L),
+                Optimizer.Config.of(16, 12, 200, 2L),
+                Optimizer.Config.of(12, 16, 200, 3L),
+                Optimizer.Config.of(16, 16, 200, 4L).withReplicas(2));
+
+        List<BatchOptimizer.Completed> done;
+        try (BatchOptimizer batch = new BatchOptimizer(2)) {
+            done = batch.run(jobs).toList();
+        }
+
+        assertEquals(jobs.size(), done.size());
+        assertEquals(List.of(0, 1, 2, 3), done.stream().map(BatchOptimizer.Completed::index).sorted().toList());
+        for (BatchOptimizer.Completed c : done) {
+            assertTrue(c.ok(), () -> String.valueOf(c.error()));
+            assertSame(jobs.get(c.index()), c.config());
+            // same result as a run on its own
+            assertEquals(new Optimizer(c.config()).optimize().city(), c.result().city());
+        }
+    }
+
+    @Test
+    public void emptyBatch() {
+        try (BatchOptimizer batch = new BatchOptimizer(1)) {
+            assertEquals(0, batch.run(List.of()).count());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.titiplex.optimizer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.titiplex.city.City;
+import org.titiplex.city.CityFile;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchScorerTest {
+
+    @Test
+    public void scoresEveryRecordInOrder(@TempDir Path dir) throws IOException {
+        List<City> cities = new ArrayList<>();
+        SplittableRandom rnd = new SplittableRandom(5L);
+        for (int i = 0; i < 40; i++) cities.add(City.randomInitialCity(16, 12, rnd));
+
+        Path file = dir.resolve("cities.bin");
+        try (CityFile.Writer writer = new CityFile.Writer(file)) {
+            for (City c : cities) writer.append(c);
+        }
+
+        double[] scores;
+        try (BatchScorer scorer = new BatchScorer(3)) {
+            scores = scorer.score(file);
+        }
+        assertEquals(cities.size(), scores.length);
+        for (int k = 0; k < scores.length; k++) {
+            assertEquals(GameOptimizer.score(cities.get(k)), scores[k]);
+        }
+    }
+
+    @Test
+    public void truncatedFile(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("cities.bin");
+        try (CityFile.Writer writer = new CityFile.Writer(file)) {
+            writer.append(new City(8, 8));
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+        try (BatchScorer scorer = new BatchScorer(1)) {
+            assertThrows(IOException.class, () -> scorer.score(file));
+            Files.write(file, new byte[0]);
+            assertEquals(0, scorer.score(file).length);
+        }
+    }
+
+    @Test
+    public void corruptHeader(@TempDir Path dir) throws IOException {
+        Path file = dir.resolve("cities.bin");
+        try (CityFile.Writer writer = new CityFile.Writer(file)) {
+            writer.append(new City(8, 8));
+            writer.append(new City(8, 8));
+        }
+        byte[] valid = Files.readAllBytes(file);
+        int second = valid.length / 2;
+        // bytes per id, width, height and number of buildings of the second record
+        int[][] headers = {{-8, 1, 1, -1}, {2, -1, 8, 1}, {2, 8, 8, -40}, {3, 8, 8, 1}, {4, 65536, 65536, 1},
+                {2, Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE}, {2, 8, 8, 1000}};
+        try (BatchScorer scorer = new BatchScorer(1)) {
+            for (int[] h : headers) {
+                ByteBuffer bytes = ByteBuffer.wrap(valid.clone());
+                bytes.put(second + 5, (byte) h[0]).putInt(second + 6, h[1]).putInt(second + 10, h[2]).putInt(second + 14, h[3]);
+                Files.write(file, bytes.array());
+                assertThrows(IOException.class, () -> scorer.score(file), Arrays.toString(h));
+            }
+        }
+    }
+}
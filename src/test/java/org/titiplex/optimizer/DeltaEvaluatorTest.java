@@ -0,0 +1,65 @@
+package org.titiplex.optimizer;
+
+import org.junit.jupiter.api.Test;
+import org.titiplex.city.City;
+
+import java.util.Random;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class DeltaEvaluatorTest {
+
+    private static void assertSameScore(double expected, double actual) {
+        assertEquals(expected, actual, 1e-6 * Math.max(1.0, Math.abs(expected)));
+    }
+
+    @Test
+    public void initialScoreMatchesFullScore() {
+        City city = City.randomInitialCity(20, 16, new Random(3L));
+        assertSameScore(GameOptimizer.score(city), new DeltaEvaluator(city).score());
+    }
+
+    @Test
+    public void deltaMatchesFullScoreAlongMutations() {
+        Random accept = new Random(11L);
+        SplittableRandom mutations = new SplittableRandom(17L);
+        City current = City.randomInitialCity(24, 24, new Random(5L));
+        DeltaEvaluator evaluator = new DeltaEvaluator(current);
+
+        for (int it = 0; it < 2_000; it++) {
+            City candidate = GameOptimizer.randomMutation(current, mutations);
+            double delta = evaluator.evaluate(candidate);
+            assertSameScore(GameOptimizer.score(candidate), delta);
+            if (accept.nextInt(3) > 0) {
+                evaluator.accept();
+                candidate.commitChanges();
+                current = candidate;
+                assertSameScore(GameOptimizer.score(current), evaluator.score());
+            }
+        }
+    }
+
+    @Test
+    public void inPlaceMutationsRollBack() {
+        Random accept = new Random(13L);
+        SplittableRandom mutations = new SplittableRandom(19L);
+        City city = City.randomInitialCity(24, 24, new Random(7L));
+        DeltaEvaluator evaluator = new DeltaEvaluator(city);
+
+        for (int it = 0; it < 2_000; it++) {
+            City before = city.deepCopy();
+            city.beginChanges();
+            GameOptimizer.mutate(city, mutations);
+            assertSameScore(GameOptimizer.score(city), evaluator.evaluate(city));
+            if (accept.nextBoolean()) {
+                evaluator.accept();
+                city.commitChanges();
+            } else {
+                city.rollbackChanges();
+                assertEquals(before, city);
+                assertSameScore(GameOptimizer.score(city), evaluator.score());
+            }
+        }
+    }
+}
@@ -5,8 +5,11 @@ import org.junit.jupiter.api.Test;
 import org.titiplex.city.Building;
 import org.titiplex.city.City;
 
+import java.util.Random;
+
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class GameOptimizerTest {
     static City city;
@@ -37,4 +40,32 @@ public class GameOptimizerTest {
     @Test
     public void testOptimizeCity() {
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testOptimizeCityParallelIsReproducible() {
+        City a = GameOptimizer.optimizeCityParallel(400, 16, 16, 4, 42L);
+        City b = GameOptimizer.optimizeCityParallel(400, 16, 16, 4, 42L);
+        assertEquals(a, b);
+    }
+
+    @Test
+    public void residencesNearRoadSpreadAlongTheRoad() {
+        // the main road is the only road: every cell of it should get its share of the new residences
+        int width = 32, runs = 400;
+        int[] byColumn = new int[width];
+        Random rnd = new Random(5);
+        for (int k = 0; k < runs; k++) {
+            City fresh = new City(width, 16);
+            ResidentialOptimizer.tryAddResidentialNearRoad(fresh, rnd);
+            assertEquals(1, fresh.count(Building.Type.RESIDENTIAL));
+            Building res = fresh.building(Building.Type.RESIDENTIAL, 0);
+            assertTrue(res.y1() == fresh.start.y() || res.y0() == fresh.start.y() + 1);
+            byColumn[res.x0()]++;
+        }
+        int nearStart = byColumn[0] + byColumn[1] + byColumn[2];
+        assertTrue(nearStart < runs / 4, "residences pile up at the start: " + nearStart);
+        for (int x = 0; x < width - 1; x += 4) {
+            assertTrue(byColumn[x] + byColumn[x + 1] + byColumn[x + 2] + byColumn[x + 3] > 0, "no residence at x = " + x);
+        }
+    }
+}
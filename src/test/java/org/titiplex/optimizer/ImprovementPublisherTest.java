@@ -0,0 +1,110 @@
+package org.titiplex.optimizer;
+
+import org.junit.jupiter.api.Test;
+import org.titiplex.city.City;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ImprovementPublisherTest {
+
+    @Test
+    public void slowSubscriberOnlySeesTheLatestBest() throws InterruptedException {
+        Recorder slow = new Recorder(1);
+        AtomicInteger improvements = new AtomicInteger();
+        Optimizer.Result result;
+        try (ImprovementPublisher publisher = new ImprovementPublisher()) {
+            publisher.subscribe(slow);
+            Optimizer.Listener counting = new Optimizer.Listener() {
+                @Override
+                public void progress(int done, int total) {
+                }
+
+                @Override
+                public void improved(City best, double score) {
+                    improvements.incrementAndGet();
+                }
+            };
+            result = new Optimizer(Optimizer.Config.of(24, 24, 2000, 1L), counting.andThen(publisher)).optimize();
+        }
+        // the subscriber asked for one city, the run is over: it gets the last one and completes
+        slow.subscription.request(1);
+        assertTrue(slow.done.await(10, TimeUnit.SECONDS));
+        assertNull(slow.error);
+        assertTrue(improvements.get() > 2);
+        assertTrue(slow.items.size() <= 2);
+        assertEquals(result.score(), slow.items.getLast().score());
+        assertEquals(result.score(), GameOptimizer.score(slow.items.getLast().city()), 1e-6);
+    }
+
+    @Test
+    public void everySubscriberGetsItsOwnCity() throws InterruptedException {
+        Recorder a = new Recorder(Long.MAX_VALUE), b = new Recorder(Long.MAX_VALUE);
+        ImprovementPublisher publisher = new ImprovementPublisher(Runnable::run);
+        publisher.subscribe(a);
+        publisher.subscribe(b);
+        Optimizer.Result result = new Optimizer(Optimizer.Config.of(16, 16, 1000, 3L), publisher).optimize();
+        publisher.close();
+        assertTrue(a.done.await(10, TimeUnit.SECONDS) && b.done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, publisher.subscribers());
+
+        assertEquals(a.items.size(), b.items.size());
+        for (int k = 1; k < a.items.size(); k++) assertTrue(a.items.get(k).score() > a.items.get(k - 1).score());
+        var lastA = a.items.getLast();
+        var lastB = b.items.getLast();
+        assertEquals(result.score(), lastA.score());
+        assertNotSame(lastA.city(), lastB.city());
+        assertEquals(GameOptimizer.score(lastA.city()), GameOptimizer.score(lastB.city()));
+    }
+
+    @Test
+    public void invalidRequestFailsTheSubscription() throws InterruptedException {
+        Recorder r = new Recorder(0);
+        ImprovementPublisher publisher = new ImprovementPublisher(Runnable::run);
+        publisher.subscribe(r);
+        r.subscription.request(-1);
+        assertTrue(r.done.await(10, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalArgumentException.class, r.error);
+        assertEquals(0, publisher.subscribers());
+    }
+
+    private static final class Recorder implements Flow.Subscriber<ImprovementPublisher.Improvement> {
+        final long initial;
+        final List<ImprovementPublisher.Improvement> items = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        Recorder(long initial) {
+            this.initial = initial;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initial > 0) subscription.request(initial);
+        }
+
+        @Override
+        public void onNext(ImprovementPublisher.Improvement item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package org.titiplex.optimizer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.titiplex.city.Building;
+import org.titiplex.city.City;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class OptimizerTest {
+
+    @Test
+    public void sameSeedSameCity() {
+        var config = Optimizer.Config.of(16, 16, 300, 9L);
+        Optimizer.Result a = new Optimizer(config).optimize();
+        Optimizer.Result b = new Optimizer(config).optimize();
+        assertEquals(a.city(), b.city());
+        assertEquals(a.score(), b.score());
+    }
+
+    @Test
+    public void concurrentRunsMatchSequentialRuns() throws Exception {
+        int runs = 4;
+        List<City> sequential = new ArrayList<>();
+        for (int i = 0; i < runs; i++) {
+            sequential.add(new Optimizer(Optimizer.Config.of(16, 16, 300, i)).optimize().city());
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(runs);
+        try {
+            List<Future<Optimizer.Result>> futures = new ArrayList<>();
+            for (int i = 0; i < runs; i++) {
+                var optimizer = new Optimizer(Optimizer.Config.of(16, 16, 300, i));
+                futures.add(pool.submit(optimizer::optimize));
+            }
+            for (int i = 0; i < runs; i++) {
+                assertEquals(sequential.get(i), futures.get(i).get().city());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void listenerSeesEveryIteration() {
+        int[] last = {0};
+        new Optimizer(Optimizer.Config.of(12, 12, 50, 1L), (done, total) -> {
+            assertEquals(50, total);
+            last[0] = done;
+        }).optimize();
+        assertEquals(50, last[0]);
+    }
+
+    @Test
+    public void metricsCountEveryProposal() {
+        var optimizer = new Optimizer(Optimizer.Config.of(16, 16, 300, 2L).withReplicas(2));
+        optimizer.optimize();
+        OptimizerMetrics.Snapshot s = optimizer.metrics().snapshot();
+        assertEquals(2 * 300, s.proposals());
+        assertEquals(s.proposals(), s.evaluation().count());
+        assertTrue(s.accepted() > 0 && s.accepted() <= s.proposals());
+        for (OptimizerMetrics.Branch b : s.branches().values()) {
+            assertEquals(b.proposals(), b.time().count());
+            assertTrue(b.accepted() <= b.proposals() && b.improved() <= b.proposals());
+        }
+        assertTrue(s.evaluation().quantile(0.5) <= s.evaluation().quantile(0.99));
+        // the run is over, its chains no longer record
+        assertFalse(optimizer.metrics().recording());
+
+        var tiled = new Optimizer(Optimizer.Config.of(32, 32, 200, 2L).withTiles(16));
+        tiled.optimize();
+        OptimizerMetrics.Snapshot t = tiled.metrics().snapshot();
+        // every tile of every pass records its proposals, 4 tiles then 9 with the offset cut
+        assertTrue(t.proposals() >= 4 * 200);
+        assertEquals(t.proposals(), t.evaluation().count());
+        assertFalse(tiled.metrics().recording());
+    }
+
+    @Test
+    public void fixedSchedulerDrawsTheMix() {
+        SplittableRandom a = new SplittableRandom(3L), b = new SplittableRandom(3L);
+        MutationScheduler fixed = MutationScheduler.fixed();
+        for (int i = 0; i < 1000; i++) {
+            Mutation m = fixed.pick(a);
+            assertEquals(GameOptimizer.pick(b), m);
+            fixed.reward(m, 1000, m == Mutation.MOVE ? 10 : 0);
+        }
+    }
+
+    @Test
+    public void adaptiveSchedulerFollowsImprovementPerTime() {
+        MutationScheduler scheduler = MutationScheduler.adaptive();
+        SplittableRandom rnd = new SplittableRandom(4L);
+        for (int i = 0; i < 4 * MutationScheduler.WARMUP; i++) {
+            Mutation m = scheduler.pick(rnd);
+            // MOVE improves as much as EXTEND_ROAD, ten times quicker
+            long nanos = m == Mutation.MOVE ? 1_000 : 10_000;
+            double delta = m == Mutation.MOVE || m == Mutation.EXTEND_ROAD ? 5 : -1;
+            scheduler.reward(m, nanos, delta);
+        }
+        assertTrue(scheduler.probability(Mutation.MOVE) > 0.8);
+        assertTrue(scheduler.probability(Mutation.EXTEND_ROAD) > scheduler.probability(Mutation.ADD));
+        // the branches that never improve keep their share of exploration
+        double explored = MutationScheduler.EXPLORE * MutationScheduler.MIX[Mutation.ADD.ordinal()];
+        assertEquals(explored, scheduler.probability(Mutation.ADD), 1e-9);
+    }
+
+    @Test
+    public void adaptiveRunCountsEveryProposal() {
+        var optimizer = new Optimizer(Optimizer.Config.of(16, 16, 1000, 6L).withAdaptiveMutations(true));
+        Optimizer.Result result = optimizer.optimize();
+        assertEquals(1000, optimizer.metrics().snapshot().proposals());
+        assertTrue(Double.isFinite(result.score()));
+    }
+
+    @Test
+    public void consoleProgressIsRateLimited() {
+        var bytes = new ByteArrayOutputStream();
+        var progress = new ConsoleProgress(new PrintStream(bytes, true), 60_000);
+        for (int i = 1; i <= 1000; i++) progress.progress(i, 1000);
+        String out = bytes.toString();
+        // the first update and the last one, nothing in between
+        assertEquals(2, out.split("\r").length - 1);
+        assertTrue(out.endsWith(ConsoleProgress.bar(1000, 1000)));
+    }
+
+    @Test
+    public void splitMixDrawsLikeSplittableRandom() {
+        SplittableRandom expected = new SplittableRandom(11L);
+        SplitMix rnd = new SplitMix(11L);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(expected.nextInt(1 + i), rnd.nextInt(1 + i));
+            assertEquals(expected.nextDouble(), rnd.nextDouble());
+            assertEquals(expected.nextLong(), rnd.nextLong());
+            assertEquals(expected.nextBoolean(), rnd.nextBoolean());
+        }
+    }
+
+    @Test
+    public void resumedRunFollowsTheUninterruptedRun(@TempDir Path dir) throws IOException {
+        var config = Optimizer.Config.of(20, 20, 900, 12L);
+        Optimizer.Result uninterrupted = new Optimizer(config).optimize();
+
+        Path file = dir.resolve("run.ckpt");
+        Optimizer.Result checkpointed = new Optimizer(config).optimizeWithCheckpoints(file, 300);
+        assertEquals(uninterrupted.city(), checkpointed.city());
+        assertEquals(uninterrupted.score(), checkpointed.score());
+
+        Checkpoint checkpoint = Checkpoint.read(file);
+        assertEquals(config, checkpoint.config());
+        assertTrue(checkpoint.iteration() == 300 || checkpoint.iteration() == 600);
+        assertFalse(Files.exists(dir.resolve("run.ckpt.tmp")));
+        // a checkpoint can be resumed more than once
+        for (int k = 0; k < 2; k++) {
+            Optimizer.Result resumed = new Optimizer(config).resume(checkpoint, dir.resolve("again.ckpt"), 300);
+            assertEquals(uninterrupted.city(), resumed.city());
+            assertEquals(uninterrupted.score(), resumed.score());
+        }
+
+        assertThrows(IllegalArgumentException.class,
+                () -> new Optimizer(config.withSeed(13L)).resume(checkpoint, file, 300));
+        assertThrows(IllegalArgumentException.class,
+                () -> new Optimizer(config.withReplicas(2)).optimizeWithCheckpoints(file, 300));
+    }
+
+    @Test
+    public void budgetedRunStopsWhenTheTimeIsUp() {
+        var optimizer = new Optimizer(Optimizer.Config.of(48, 48, 0, 1L));
+        AtomicInteger polls = new AtomicInteger();
+        long start = System.nanoTime();
+        var run = optimizer.optimizeFor(Optimizer.Budget.wallClock(Duration.ofMillis(300)).withPlateau(1), () -> {
+            polls.incrementAndGet();
+            return false;
+        });
+        // the road connection pass comes after the budget
+        long annealing = System.nanoTime() - start - run.connection().toNanos();
+        assertEquals(Optimizer.Stop.BUDGET, run.stop());
+        assertTrue(annealing >= Duration.ofMillis(300).toNanos() && annealing < Duration.ofMillis(1300).toNanos());
+        assertEquals(run.iterations(), optimizer.metrics().snapshot().proposals());
+        // the clock is read, and cancellation polled, at most once an iteration and about a thousand times in all
+        assertTrue(polls.get() <= Math.min(run.iterations(), 2L * Optimizer.CLOCK_READS));
+    }
+
+    @Test
+    public void budgetedRunStopsOnAPlateau() {
+        var budget = Optimizer.Budget.cpuTime(Duration.ofSeconds(60)).withPlateau(0.005);
+        var run = new Optimizer(Optimizer.Config.of(8, 8, 0, 1L)).optimizeFor(budget, () -> false);
+        assertEquals(Optimizer.Stop.PLATEAU, run.stop());
+    }
+
+    @Test
+    public void cancelledRunReturnsTheBestSoFar() {
+        AtomicInteger polls = new AtomicInteger();
+        var optimizer = new Optimizer(Optimizer.Config.of(16, 16, 0, 1L));
+        var run = optimizer.optimizeFor(Optimizer.Budget.wallClock(Duration.ofMinutes(1)), () -> polls.incrementAndGet() > 50);
+        assertEquals(Optimizer.Stop.CANCELLED, run.stop());
+        assertEquals(51, polls.get());
+        assertTrue(run.iterations() >= 50);
+        assertTrue(run.result().score() >= GameOptimizer.score(City.randomInitialCity(16, 16, new SplitMix(1L))));
+
+        Thread.currentThread().interrupt();
+        try {
+            run = optimizer.optimizeFor(Optimizer.Budget.wallClock(Duration.ofMinutes(1)), () -> false);
+            assertEquals(Optimizer.Stop.CANCELLED, run.stop());
+            assertEquals(0, run.iterations());
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertThrows(IllegalArgumentException.class, () -> new Optimizer(Optimizer.Config.of(16, 16, 0, 1L).withReplicas(2))
+                .optimizeFor(Optimizer.Budget.wallClock(Duration.ofSeconds(1)), () -> false));
+    }
+
+    @Test
+    public void invalidConfig() {
+        assertThrows(IllegalArgumentException.class, () -> Optimizer.Config.of(0, 12, 50, 1L));
+        assertThrows(IllegalArgumentException.class, () -> Optimizer.Config.of(12, 12, 50, 1L).withReplicas(0));
+        assertThrows(IllegalArgumentException.class, () -> Optimizer.Config.of(12, 12, 50, 1L).withTiles(4));
+        assertThrows(IllegalArgumentException.class, () -> Optimizer.Config.of(12, 12, 50, 1L).withReplicas(2).withTiles(8));
+    }
+
+    @Test
+    public void tiledRunIsReproducible() {
+        var config = Optimizer.Config.of(40, 40, 400, 5L).withTiles(16);
+        Optimizer.Result a = new Optimizer(config).optimize();
+        Optimizer.Result b = new Optimizer(config).optimize();
+        assertEquals(a.city(), b.city());
+        assertEquals(a.score(), b.score());
+    }
+
+    @Test
+    public void tiledRunKeepsTheMainRoad() {
+        var config = Optimizer.Config.of(40, 40, 400, 5L).withTiles(16);
+        City city = new Optimizer(config).optimize().city();
+        for (int x = 0; x < city.width; x++) {
+            assertEquals(Building.Type.ROAD, city.typeAt(x, city.start.y()));
+            assertTrue(city.isRoadConnected(city.index(x, city.start.y())));
+        }
+        assertEquals(GameOptimizer.score(city), GameOptimizer.score(city.deepCopy()));
+    }
+
+    @Test
+    public void tilesCoverTheMap() {
+        var tiled = new TiledOptimizer(Optimizer.Config.of(40, 30, 0, 1L).withTiles(16), new SplittableRandom(1L),
+                new OptimizerMetrics("tiles"));
+        for (int offset : new int[]{0, 8}) {
+            int cells = 0;
+            for (City.Area a : tiled.tiles(offset)) cells += a.size();
+            assertEquals(40 * 30, cells);
+        }
+        assertEquals(List.of(new City.Area(0, 0, 8, 8), new City.Area(8, 0, 24, 8)), tiled.tiles(8).subList(0, 2));
+    }
+}
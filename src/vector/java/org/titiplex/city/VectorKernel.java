@@ -0,0 +1,35 @@
+package org.titiplex.city;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link ServiceBoxes.Kernel} on the Vector API: the reach test runs on as many boxes at once as the
+ * preferred int vector holds, and only the lanes that hit are visited. Needs the {@code jdk.incubator.vector}
+ * module; only loaded by {@link ServiceBoxes#KERNEL} when the module is there.
+ */
+final class VectorKernel implements ServiceBoxes.Kernel {
+
+    private static final VectorSpecies<Integer> SPECIES = IntVector.SPECIES_PREFERRED;
+
+    @Override
+    public int inReach(int x, int y, int[] x0, int[] y0, int[] rx, int[] ry, int[] ids, int n, int[] hits) {
+        int found = 0, k = 0;
+        for (int upper = SPECIES.loopBound(n); k < upper; k += SPECIES.length()) {
+            VectorMask<Integer> inX = IntVector.fromArray(SPECIES, x0, k).sub(x).lanewise(VectorOperators.ABS)
+                    .compare(VectorOperators.LE, IntVector.fromArray(SPECIES, rx, k));
+            VectorMask<Integer> in = IntVector.fromArray(SPECIES, y0, k).sub(y).lanewise(VectorOperators.ABS)
+                    .compare(VectorOperators.LE, IntVector.fromArray(SPECIES, ry, k)).and(inX);
+            // lanes in order, so hits keep the order of the boxes
+            for (long lanes = in.toLong(); lanes != 0; lanes &= lanes - 1) {
+                hits[found++] = ids[k + Long.numberOfTrailingZeros(lanes)];
+            }
+        }
+        for (; k < n; k++) {
+            if (Math.abs(x - x0[k]) <= rx[k] && Math.abs(y - y0[k]) <= ry[k]) hits[found++] = ids[k];
+        }
+        return found;
+    }
+}